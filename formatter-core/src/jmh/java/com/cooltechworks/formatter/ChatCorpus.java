@@ -0,0 +1,100 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+import java.util.Random;
+
+/**
+ * Deterministic chat texts the benchmarks run against.
+ */
+final class ChatCorpus {
+
+    private static final String[] WORDS = {
+            "hey", "are", "we", "still", "on", "for", "tonight", "the", "meeting", "moved", "to", "five",
+            "please", "check", "doc", "ok", "thanks", "see", "you", "there", "lol", "sure", "done"
+    };
+
+    private static final String[] EMOJI = {
+            "\uD83D\uDE00", "\uD83D\uDE02", "\uD83D\uDC4D", "\u2764\uFE0F", "\uD83C\uDF89", "\uD83D\uDE4F"
+    };
+
+    private ChatCorpus() {
+    }
+
+    /**
+     * @param kind - one of short, draft, dense, adversarial_stars, adversarial_mixed, emoji.
+     * @return text of the given kind.
+     */
+    static String create(String kind) {
+
+        Random random = new Random(42);
+
+        if ("short".equals(kind)) {
+            return "hey *are* we still on for _tonight_? ~maybe~ not";
+        } else if ("draft".equals(kind)) {
+            return lines(random, 200, 12, 0.1);
+        } else if ("dense".equals(kind)) {
+            return lines(random, 50, 40, 0.8);
+        } else if ("adversarial_stars".equals(kind)) {
+            return repeat("*", 10000);
+        } else if ("adversarial_mixed".equals(kind)) {
+            return repeat("_a_b_c~d*", 2000);
+        } else if ("emoji".equals(kind)) {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < 2000; i++) {
+                builder.append(EMOJI[random.nextInt(EMOJI.length)]);
+                if (random.nextInt(8) == 0) {
+                    builder.append(" *").append(WORDS[random.nextInt(WORDS.length)]).append("* ");
+                }
+            }
+            return builder.toString();
+        }
+
+        throw new IllegalArgumentException("Unknown corpus " + kind);
+    }
+
+    private static String lines(Random random, int lines, int words, double flagRatio) {
+
+        StringBuilder builder = new StringBuilder();
+        char[] flags = {WhatsappMarkup.BOLD_FLAG, WhatsappMarkup.ITALIC_FLAG, WhatsappMarkup.STRIKE_FLAG};
+
+        for (int line = 0; line < lines; line++) {
+            for (int word = 0; word < words; word++) {
+                String text = WORDS[random.nextInt(WORDS.length)];
+                if (random.nextDouble() < flagRatio) {
+                    char flag = flags[random.nextInt(flags.length)];
+                    builder.append(flag).append(text).append(flag);
+                } else {
+                    builder.append(text);
+                }
+                builder.append(WhatsappMarkup.SPACE);
+            }
+            builder.append(WhatsappMarkup.NEW_LINE);
+        }
+
+        return builder.toString();
+    }
+
+    private static String repeat(String text, int count) {
+        StringBuilder builder = new StringBuilder(text.length() * count);
+        for (int i = 0; i < count; i++) {
+            builder.append(text);
+        }
+        return builder.toString();
+    }
+}
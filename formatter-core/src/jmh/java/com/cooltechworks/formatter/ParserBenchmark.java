@@ -0,0 +1,83 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks of the parsing hot paths: the TextView parse (flags stripped), the EditText parse (flags kept),
+ * the TextView parse with extra rules, the markup writer and the same line flag lookup.
+ *
+ * Run with gradle jmh, results are written to build/reports/jmh/results.json.
+ */
+@State(Scope.Thread)
+public class ParserBenchmark {
+
+    @Param({"short", "draft", "dense", "adversarial_stars", "adversarial_mixed", "emoji"})
+    public String corpus;
+
+    private String mText;
+    private final WhatsappParser mParser = new WhatsappParser();
+
+    /**
+     * Default rules plus multi character ones, whose cost per character should stay the same.
+     */
+    private final WhatsappRules mExtendedRules = new WhatsappRules(WhatsappRule.BOLD, WhatsappRule.STRIKE,
+            WhatsappRule.ITALIC, WhatsappRule.MONOSPACE, new WhatsappRule("`", 'c'), new WhatsappRule("> ", '>'));
+
+    private WhatsappParseResult mFormatted;
+
+    @Setup
+    public void setUp() {
+        mText = ChatCorpus.create(corpus);
+        mParser.parse(mText, false);
+        mFormatted = mParser.getResult();
+    }
+
+    @Benchmark
+    public int extractFlagsForTextView() {
+        mParser.parse(mText, false);
+        return mParser.getSpanCount() + mParser.getText().length();
+    }
+
+    @Benchmark
+    public int extractFlagsForEditText() {
+        mParser.parse(mText, true);
+        return mParser.getSpanCount();
+    }
+
+    @Benchmark
+    public int extractFlagsWithExtendedRules() {
+        mParser.parse(mText, false, mExtendedRules);
+        return mParser.getSpanCount() + mParser.getText().length();
+    }
+
+    @Benchmark
+    public int toMarkup() {
+        return WhatsappMarkupWriter.toMarkup(mFormatted.getText(), mFormatted).length();
+    }
+
+    @Benchmark
+    public boolean hasFlagSameLine() {
+        return WhatsappMarkup.hasFlagSameLine(mText, WhatsappMarkup.BOLD_FLAG, 1);
+    }
+}
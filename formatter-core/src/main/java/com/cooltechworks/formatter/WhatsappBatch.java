@@ -0,0 +1,273 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parallel formatting of a batch of texts, for instance a page of messages loaded from the database.
+ *
+ * The texts are split in chunks parsed concurrently on an executor. Results are span descriptors, in the
+ * order of the input texts. The first error of a chunk, or the rejection of a chunk by the executor, fails
+ * the batch and is thrown by {@link #get()}.
+ */
+public class WhatsappBatch {
+
+    /**
+     * Number of chunks per thread, so that threads finishing early pick up the remaining work.
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private static final int PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static ExecutorService sDefaultExecutor;
+
+    private final String[] mTexts;
+    private final boolean mKeepFlags;
+    private final WhatsappRules mRules;
+    private final WhatsappParseResult[] mResults;
+
+    private final AtomicInteger mRemainingChunks;
+    private volatile boolean mCancelled;
+
+    /**
+     * First error of the batch, null while none.
+     */
+    private volatile Throwable mError;
+
+    private WhatsappBatch(String[] texts, boolean keepFlags, WhatsappRules rules, int chunks) {
+        mTexts = texts;
+        mKeepFlags = keepFlags;
+        mRules = rules;
+        mResults = new WhatsappParseResult[texts.length];
+        mRemainingChunks = new AtomicInteger(chunks);
+    }
+
+    /**
+     * Formats the texts for a TextView on the default executor.
+     * @param texts - raw texts.
+     * @return running batch.
+     */
+    public static WhatsappBatch format(List<? extends CharSequence> texts) {
+        return format(texts, false, getDefaultExecutor());
+    }
+
+    /**
+     * Formats the texts on the given executor.
+     * @param texts - raw texts, copied before this method returns.
+     * @param keepFlags - true to keep the flag characters (EditText), false to strip them (TextView).
+     * @param executor - executor running the chunks.
+     * @return running batch.
+     */
+    public static WhatsappBatch format(List<? extends CharSequence> texts, boolean keepFlags, Executor executor) {
+        return format(texts, keepFlags, executor, WhatsappRules.DEFAULT);
+    }
+
+    /**
+     * Formats the texts on the given executor with the given rules.
+     * @param texts - raw texts, copied before this method returns.
+     * @param keepFlags - true to keep the flag characters (EditText), false to strip them (TextView).
+     * @param executor - executor running the chunks.
+     * @param rules - markup rules.
+     * @return running batch.
+     */
+    public static WhatsappBatch format(List<? extends CharSequence> texts, boolean keepFlags, Executor executor,
+                                       WhatsappRules rules) {
+
+        String[] snapshot = new String[texts.size()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = texts.get(i).toString();
+        }
+
+        int chunkSize = Math.max(1, (snapshot.length + PARALLELISM * CHUNKS_PER_THREAD - 1) / (PARALLELISM * CHUNKS_PER_THREAD));
+        int chunks = (snapshot.length + chunkSize - 1) / chunkSize;
+
+        WhatsappBatch batch = new WhatsappBatch(snapshot, keepFlags, rules, chunks);
+
+        int submitted = 0;
+        try {
+            for (int start = 0; start < snapshot.length; start += chunkSize) {
+                executor.execute(batch.new Chunk(start, Math.min(start + chunkSize, snapshot.length)));
+                submitted++;
+            }
+        } catch (RejectedExecutionException e) {
+            batch.fail(e);
+            batch.onChunksDone(chunks - submitted);
+        }
+
+        return batch;
+    }
+
+    /**
+     * Cancels the batch. Chunks not started yet are skipped and running ones stop at the next text.
+     */
+    public void cancel() {
+        mCancelled = true;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return true if the batch was cancelled.
+     */
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @return true if every chunk is over, the texts being formatted unless the batch failed.
+     */
+    public boolean isDone() {
+        return mRemainingChunks.get() == 0;
+    }
+
+    /**
+     * Waits for the batch to complete.
+     * @return results in the order of the input texts.
+     * @throws CancellationException if the batch was cancelled.
+     * @throws ExecutionException if a chunk failed or was rejected by the executor, with that error as cause.
+     */
+    public synchronized List<WhatsappParseResult> get() throws InterruptedException, ExecutionException {
+
+        while (!isDone() && !mCancelled && mError == null) {
+            wait();
+        }
+
+        return getResults();
+    }
+
+    /**
+     * Waits at most the given time for the batch to complete.
+     * @return results in the order of the input texts.
+     * @throws CancellationException if the batch was cancelled.
+     * @throws ExecutionException if a chunk failed or was rejected by the executor, with that error as cause.
+     * @throws TimeoutException if the batch did not complete in time.
+     */
+    public synchronized List<WhatsappParseResult> get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        while (!isDone() && !mCancelled && mError == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+
+        return getResults();
+    }
+
+    private List<WhatsappParseResult> getResults() throws ExecutionException {
+        if (mCancelled) {
+            throw new CancellationException();
+        }
+        if (mError != null) {
+            throw new ExecutionException(mError);
+        }
+        return Arrays.asList(mResults.clone());
+    }
+
+    /**
+     * Records the first error of the batch, stops the running chunks at their next text and wakes up the
+     * waiting threads.
+     */
+    private synchronized void fail(Throwable error) {
+        if (mError == null) {
+            mError = error;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Counts down the given number of chunks, over or never run, and wakes up the waiting threads once every
+     * chunk is over.
+     */
+    private void onChunksDone(int count) {
+        if (count > 0 && mRemainingChunks.addAndGet(-count) == 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getDefaultExecutor() {
+
+        if (sDefaultExecutor == null) {
+            sDefaultExecutor = Executors.newFixedThreadPool(PARALLELISM, new ThreadFactory() {
+
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "WhatsappBatch #" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+
+        return sDefaultExecutor;
+    }
+
+    /**
+     * Formats the texts between start and end.
+     */
+    private class Chunk implements Runnable {
+
+        private final int mStart;
+        private final int mEnd;
+
+        Chunk(int start, int end) {
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        public void run() {
+
+            WhatsappParser parser = WhatsappParser.obtain();
+
+            try {
+                for (int i = mStart; i < mEnd && !mCancelled && mError == null; i++) {
+                    parser.parse(mTexts[i], mKeepFlags, mRules);
+                    mResults[i] = parser.getResult();
+                }
+            } catch (Throwable error) {
+                fail(error);
+            } finally {
+                parser.recycle();
+                onChunksDone(1);
+            }
+        }
+    }
+}
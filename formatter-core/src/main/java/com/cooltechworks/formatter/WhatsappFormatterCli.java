@@ -0,0 +1,68 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Command line entry point of the {@link WhatsappStreamFormatter}.
+ *
+ * <pre>
+ * java -jar formatter-core.jar --html chat.txt chat.html
+ * java -jar formatter-core.jar --text chat.txt chat.plain.txt chat.spans.txt
+ * </pre>
+ */
+public class WhatsappFormatterCli {
+
+    private static final String USAGE = "usage: --html <input> <output.html>\n"
+            + "       --text <input> <output.txt> <output.spans>";
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length == 3 && "--html".equals(args[0])) {
+            Writer writer = open(args[2]);
+            try {
+                new WhatsappStreamFormatter().format(new File(args[1]), new WhatsappStreamFormatter.HtmlSink(writer));
+            } finally {
+                writer.close();
+            }
+        } else if (args.length == 4 && "--text".equals(args[0])) {
+            Writer textWriter = open(args[2]);
+            Writer spanWriter = open(args[3]);
+            try {
+                new WhatsappStreamFormatter().format(new File(args[1]),
+                        new WhatsappStreamFormatter.TextSink(textWriter, spanWriter));
+            } finally {
+                textWriter.close();
+                spanWriter.close();
+            }
+        } else {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+    }
+
+    private static Writer open(String path) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path), "UTF-8"));
+    }
+}
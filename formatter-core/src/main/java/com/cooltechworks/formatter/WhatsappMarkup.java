@@ -0,0 +1,59 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+/**
+ * Markup of the WhatsApp formatting: flag characters and the line scoped flag lookup.
+ */
+public final class WhatsappMarkup {
+
+    public static final char NEW_LINE = '\n';
+    public static final char SPACE = ' ';
+    public static final char BOLD_FLAG = '*';
+    public static final char STRIKE_FLAG = '~';
+    public static final char ITALIC_FLAG = '_';
+
+
+    public static final int INVALID_INDEX = -1;
+
+    private WhatsappMarkup() {
+    }
+
+    /**
+     * Tells whether has a flag in the same line as mentioned by fromIndex character.
+     * @param sequence - text
+     * @param flag - expected flag.
+     * @param fromIndex - index representing the line.
+     * @return
+     */
+    public static boolean hasFlagSameLine(CharSequence sequence, char flag, int fromIndex) {
+
+        for(int i=fromIndex;i<sequence.length();i++) {
+            char c = sequence.charAt(i);
+            if(c == NEW_LINE) {
+                return false;
+            }
+
+            if(c == flag ) {
+                return i != fromIndex;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+import java.util.Arrays;
+
+import static com.cooltechworks.formatter.WhatsappMarkup.NEW_LINE;
+
+/**
+ * Writes a formatted text back to raw markup, the reverse of a parse with stripped flags.
+ *
+ * Spans are turned into opening and closing flags in a single sweep over the sorted span boundaries.
+ * Overlapping spans of a type are merged, adjacent ones stay apart, and spans crossing a line break are
+ * closed before it and opened again after it, since flags never cross a line. A flag is only written
+ * before a character it formats, so no empty pair is written.
+ *
+ * Parsing the markup gives back the text and its spans, unless the text itself holds flag characters
+ * that pair up.
+ */
+public final class WhatsappMarkupWriter {
+
+    private static final int START = 1;
+
+    private WhatsappMarkupWriter() {
+    }
+
+    /**
+     * Writes the markup of a text formatted with the default rules.
+     * @param text - formatted text, without flags.
+     * @param spans - spans of the text, in text offsets.
+     * @return raw markup.
+     */
+    public static String toMarkup(CharSequence text, WhatsappSpanList spans) {
+        return toMarkup(text, spans, WhatsappRules.DEFAULT);
+    }
+
+    /**
+     * Writes the markup of a formatted text.
+     * @param text - formatted text, without flags.
+     * @param spans - spans of the text, in text offsets. Spans of a type without rule are dropped.
+     * @param rules - markup rules giving the flag of each span type.
+     * @return raw markup.
+     */
+    public static String toMarkup(CharSequence text, WhatsappSpanList spans, WhatsappRules rules) {
+
+        int length = text.length();
+        int ruleCount = rules.getRuleCount();
+
+        // span boundaries, sorted by offset with ends first: offset, start bit and rule index
+        long[] events = new long[spans.getSpanCount() * 2];
+        int eventCount = 0;
+        int capacity = length;
+
+        for (int i = 0; i < spans.getSpanCount(); i++) {
+            int start = Math.max(spans.getSpanStart(i), 0);
+            int end = Math.min(spans.getSpanEnd(i), length);
+            int rule = indexOfType(rules, spans.getSpanType(i));
+
+            if (start >= end || rule == WhatsappMarkup.INVALID_INDEX) {
+                continue;
+            }
+
+            events[eventCount++] = ((long) start << 32) | (START << 16) | rule;
+            events[eventCount++] = ((long) end << 32) | rule;
+            capacity += rules.getFlagLength(rule) * 2;
+        }
+        Arrays.sort(events, 0, eventCount);
+
+        StringBuilder markup = new StringBuilder(capacity);
+
+        // per rule: number of spans covering the current offset, and whether its opening flag is written
+        int[] depths = new int[ruleCount];
+        boolean[] opened = new boolean[ruleCount];
+        int toOpen = 0;
+        int event = 0;
+
+        for (int i = 0; i <= length; i++) {
+
+            for (; event < eventCount && (int) (events[event] >>> 32) == i; event++) {
+                int rule = (int) events[event] & 0xFFFF;
+
+                if ((events[event] & (START << 16)) != 0) {
+                    if (depths[rule]++ == 0) {
+                        toOpen++;
+                    }
+                } else if (--depths[rule] == 0) {
+                    if (opened[rule]) {
+                        markup.append(rules.getRule(rule).getFlag());
+                        opened[rule] = false;
+                    } else {
+                        toOpen--;
+                    }
+                }
+            }
+
+            if (i == length) {
+                break;
+            }
+
+            char c = text.charAt(i);
+
+            if (c == NEW_LINE) {
+                for (int rule = 0; rule < ruleCount; rule++) {
+                    if (opened[rule]) {
+                        markup.append(rules.getRule(rule).getFlag());
+                        opened[rule] = false;
+                        toOpen++;
+                    }
+                }
+            } else if (toOpen > 0) {
+                for (int rule = 0; rule < ruleCount; rule++) {
+                    if (depths[rule] > 0 && !opened[rule]) {
+                        markup.append(rules.getRule(rule).getFlag());
+                        opened[rule] = true;
+                    }
+                }
+                toOpen = 0;
+            }
+
+            markup.append(c);
+        }
+
+        return markup.toString();
+    }
+
+    private static int indexOfType(WhatsappRules rules, char type) {
+        for (int i = 0; i < rules.getRuleCount(); i++) {
+            if (rules.getType(i) == type) {
+                return i;
+            }
+        }
+        return WhatsappMarkup.INVALID_INDEX;
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+import java.util.Arrays;
+
+/**
+ * Maps offsets of a raw text to offsets of its formatted text with the flags stripped, and back.
+ *
+ * Only the offsets where flags were removed are stored, with the number of flag characters removed up to
+ * them, so a lookup is a binary search over the flags of the text. A search hit found in a stored raw
+ * message can be highlighted in its displayed text without parsing it again.
+ */
+public final class WhatsappOffsetMap {
+
+    /**
+     * Map of a text without stripped flags.
+     */
+    static final WhatsappOffsetMap IDENTITY = new WhatsappOffsetMap(new int[0], new int[0]);
+
+    /**
+     * Formatted text offsets where flags were removed, ascending, and the number of flag characters removed
+     * up to and including each of them.
+     */
+    private final int[] mDisplayOffsets;
+    private final int[] mRemoved;
+
+    private WhatsappOffsetMap(int[] displayOffsets, int[] removed) {
+        mDisplayOffsets = displayOffsets;
+        mRemoved = removed;
+    }
+
+    /**
+     * @param flags - stripped flags, as their formatted text offset in the high bits and their length in the
+     *              low bits, sorted.
+     */
+    static WhatsappOffsetMap ofDisplayFlags(long[] flags) {
+
+        int[] displayOffsets = new int[flags.length];
+        int[] removed = new int[flags.length];
+        int count = 0, total = 0;
+
+        for (long flag : flags) {
+            int offset = (int) (flag >>> 32);
+            total += (int) flag;
+            if (count == 0 || displayOffsets[count - 1] != offset) {
+                displayOffsets[count++] = offset;
+            }
+            removed[count - 1] = total;
+        }
+
+        return new WhatsappOffsetMap(Arrays.copyOf(displayOffsets, count), Arrays.copyOf(removed, count));
+    }
+
+    /**
+     * @param flags - stripped flags, as their raw text offset in the high bits and their length in the low
+     *              bits, sorted.
+     */
+    static WhatsappOffsetMap ofRawFlags(long[] flags) {
+
+        int[] displayOffsets = new int[flags.length];
+        int[] removed = new int[flags.length];
+        int count = 0, total = 0;
+
+        for (long flag : flags) {
+            int offset = (int) (flag >>> 32) - total;
+            total += (int) flag;
+            if (count == 0 || displayOffsets[count - 1] != offset) {
+                displayOffsets[count++] = offset;
+            }
+            removed[count - 1] = total;
+        }
+
+        return new WhatsappOffsetMap(Arrays.copyOf(displayOffsets, count), Arrays.copyOf(removed, count));
+    }
+
+    /**
+     * @param rawOffset - offset in the raw text, between 0 and its length.
+     * @return offset of the same character in the formatted text. Offsets inside a flag map to the offset
+     * the flag was removed at.
+     */
+    public int toDisplayOffset(int rawOffset) {
+
+        // last flag starting at or before the offset, raw flag offsets growing with the formatted ones
+        int low = 0, high = mDisplayOffsets.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (rawStart(mid) <= rawOffset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        int flag = low - 1;
+        if (flag < 0) {
+            return rawOffset;
+        }
+        int display = rawOffset - mRemoved[flag];
+        return Math.max(display, mDisplayOffsets[flag]);
+    }
+
+    /**
+     * @param displayOffset - offset in the formatted text, between 0 and its length.
+     * @return offset of the same character in the raw text, after the flags removed at that offset.
+     */
+    public int toRawOffset(int displayOffset) {
+
+        int low = 0, high = mDisplayOffsets.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mDisplayOffsets[mid] <= displayOffset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low == 0 ? displayOffset : displayOffset + mRemoved[low - 1];
+    }
+
+    /**
+     * @return number of flag characters stripped from the raw text.
+     */
+    public int getRemovedCount() {
+        return mRemoved.length == 0 ? 0 : mRemoved[mRemoved.length - 1];
+    }
+
+    private int rawStart(int flag) {
+        return mDisplayOffsets[flag] + (flag == 0 ? 0 : mRemoved[flag - 1]);
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+import java.util.Arrays;
+
+/**
+ * Immutable result of a parse: the formatted text and its span descriptors. Holds no Android span, so it
+ * can be built on any thread and kept around.
+ */
+public final class WhatsappParseResult implements WhatsappSpanList {
+
+    private final String mText;
+    private final int[] mStarts;
+    private final int[] mEnds;
+    private final int[] mTypes;
+    private final boolean mFlagsKept;
+
+    /**
+     * Built on first use. Immutable, so a race only builds it twice.
+     */
+    private WhatsappOffsetMap mOffsetMap;
+
+    WhatsappParseResult(String text, int[] starts, int[] ends, int[] types, boolean flagsKept) {
+        mText = text;
+        mStarts = starts;
+        mEnds = ends;
+        mTypes = types;
+        mFlagsKept = flagsKept;
+    }
+
+    /**
+     * @return formatted text, without the flags if they were stripped.
+     */
+    public String getText() {
+        return mText;
+    }
+
+    /**
+     * @return true if the flag characters are kept in the text (EditText), false if they were stripped (TextView).
+     */
+    public boolean isFlagsKept() {
+        return mFlagsKept;
+    }
+
+    /**
+     * @return map between the offsets of the raw text and of {@link #getText()}, an identity map when the
+     * flags are kept.
+     */
+    public WhatsappOffsetMap getOffsetMap() {
+
+        WhatsappOffsetMap map = mOffsetMap;
+        if (map != null) {
+            return map;
+        }
+
+        if (mFlagsKept) {
+            map = WhatsappOffsetMap.IDENTITY;
+        } else {
+            long[] flags = new long[mStarts.length * 2];
+            for (int i = 0; i < mStarts.length; i++) {
+                long flagLength = getSpanFlagLength(i);
+                flags[i * 2] = ((long) mStarts[i] << 32) | flagLength;
+                flags[i * 2 + 1] = ((long) mEnds[i] << 32) | flagLength;
+            }
+            Arrays.sort(flags);
+            map = WhatsappOffsetMap.ofDisplayFlags(flags);
+        }
+
+        mOffsetMap = map;
+        return map;
+    }
+
+    @Override
+    public int getSpanCount() {
+        return mStarts.length;
+    }
+
+    @Override
+    public int getSpanStart(int index) {
+        return mStarts[index];
+    }
+
+    @Override
+    public int getSpanEnd(int index) {
+        return mEnds[index];
+    }
+
+    @Override
+    public char getSpanType(int index) {
+        return (char) mTypes[index];
+    }
+
+    @Override
+    public int getSpanFlagLength(int index) {
+        return mTypes[index] >>> WhatsappParser.FLAG_LENGTH_SHIFT;
+    }
+}
@@ -0,0 +1,367 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+import java.util.Arrays;
+
+import static com.cooltechworks.formatter.WhatsappMarkup.INVALID_INDEX;
+
+/**
+ * Reusable flag parser.
+ *
+ * Reads the input {@link CharSequence} directly and records the spans in primitive arrays. The arrays are
+ * kept between calls, so parsing on the same instance does not allocate once they are large enough.
+ * Instances are not thread safe, use {@link #obtain()} to get the one of the current thread.
+ */
+public class WhatsappParser implements WhatsappSpanList {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Buffers above this size are dropped on {@link #recycle()} so a single large text does not pin memory.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+
+    private static final ThreadLocal<WhatsappParser> sParsers = new ThreadLocal<WhatsappParser>() {
+        @Override
+        protected WhatsappParser initialValue() {
+            return new WhatsappParser();
+        }
+    };
+
+    /**
+     * Span types hold the flag length above the type character.
+     */
+    static final int FLAG_LENGTH_SHIFT = 16;
+
+    /**
+     * Per flag found by the first pass: offset in the text, next flag of the same rule in the same line and
+     * rule of the flag.
+     */
+    private int[] mCandidates = new int[INITIAL_CAPACITY];
+    private int[] mNextIndices = new int[INITIAL_CAPACITY];
+    private byte[] mTokens = new byte[INITIAL_CAPACITY];
+    private int[] mOpens = new int[0];
+    private char[] mChars = new char[INITIAL_CAPACITY];
+
+    private int[] mStarts = new int[INITIAL_CAPACITY];
+    private int[] mEnds = new int[INITIAL_CAPACITY];
+    private int[] mTypes = new int[INITIAL_CAPACITY];
+    private int mSpanCount;
+
+    private CharSequence mSource;
+    private int mRegionStart;
+    private int mRegionEnd;
+    private int mLength;
+    private boolean mStripped;
+    private boolean mKeepFlags;
+
+    /**
+     * @return parser of the calling thread, to be given back with {@link #recycle()}.
+     */
+    public static WhatsappParser obtain() {
+        return sParsers.get();
+    }
+
+    /**
+     * Parses the given text.
+     *
+     * @param text - input sequence.
+     * @param keepFlags - true to keep the flag characters in the text (EditText), false to strip them (TextView).
+     */
+    public void parse(CharSequence text, boolean keepFlags) {
+        parse(text, 0, text.length(), keepFlags, WhatsappRules.DEFAULT);
+    }
+
+    /**
+     * Parses the given text with the given rules.
+     *
+     * @param text - input sequence.
+     * @param keepFlags - true to keep the flag characters in the text (EditText), false to strip them (TextView).
+     * @param rules - markup rules.
+     */
+    public void parse(CharSequence text, boolean keepFlags, WhatsappRules rules) {
+        parse(text, 0, text.length(), keepFlags, rules);
+    }
+
+    /**
+     * Parses the lines between start and end of the given text. Flags never cross a {@link WhatsappMarkup#NEW_LINE},
+     * so parsing whole lines gives the same spans as parsing the whole text.
+     *
+     * @param text - input sequence.
+     * @param start - start of the region, at the beginning of a line.
+     * @param end - end of the region, at the end of a line.
+     * @param keepFlags - true to keep the flag characters in the text (EditText), false to strip them (TextView).
+     *                  Spans are in text offsets when flags are kept, in region offsets otherwise.
+     */
+    public void parse(CharSequence text, int start, int end, boolean keepFlags) {
+        parse(text, start, end, keepFlags, WhatsappRules.DEFAULT);
+    }
+
+    /**
+     * Same as {@link #parse(CharSequence, int, int, boolean)} with the given rules.
+     *
+     * @param rules - markup rules.
+     */
+    public void parse(CharSequence text, int start, int end, boolean keepFlags, WhatsappRules rules) {
+
+        int length = end - start;
+        mSource = text;
+        mRegionStart = start;
+        mRegionEnd = end;
+        mSpanCount = 0;
+        mStripped = false;
+        mKeepFlags = keepFlags;
+
+        if (mNextIndices.length < length) {
+            mNextIndices = new int[grow(mNextIndices.length, length)];
+            mCandidates = new int[mNextIndices.length];
+            mTokens = new byte[mNextIndices.length];
+        }
+        if (!keepFlags && mChars.length < length) {
+            mChars = new char[grow(mChars.length, length)];
+        }
+        if (mOpens.length < rules.getRuleCount()) {
+            mOpens = new int[rules.getRuleCount()];
+        }
+
+        int[] candidates = mCandidates;
+        int[] nextIndices = mNextIndices;
+        byte[] tokens = mTokens;
+        int[] opens = mOpens;
+        int ruleCount = rules.getRuleCount();
+
+        // first pass: find the flags and link each one to the next flag of its rule in the same line. Most
+        // characters are not flags and cost a single table lookup.
+        Arrays.fill(opens, 0, ruleCount, INVALID_INDEX);
+        int candidateCount = 0;
+        boolean lineHasFlag = false;
+
+        for (int i = start; i < end; ) {
+            int charClass = rules.classOf(text.charAt(i));
+
+            if (charClass == WhatsappRules.CLASS_NONE) {
+                i++;
+                continue;
+            }
+
+            if (charClass == WhatsappRules.CLASS_NEW_LINE) {
+                if (lineHasFlag) {
+                    Arrays.fill(opens, 0, ruleCount, INVALID_INDEX);
+                    lineHasFlag = false;
+                }
+                i++;
+                continue;
+            }
+
+            int rule = rules.match(text, i, end, charClass);
+            if (rule == INVALID_INDEX) {
+                i++;
+                continue;
+            }
+
+            if (opens[rule] != INVALID_INDEX) {
+                nextIndices[opens[rule]] = candidateCount;
+            }
+            opens[rule] = candidateCount;
+            candidates[candidateCount] = i;
+            nextIndices[candidateCount] = INVALID_INDEX;
+            tokens[candidateCount++] = (byte) rule;
+            lineHasFlag = true;
+
+            i += rules.getFlagLength(rule);
+        }
+
+        if (candidateCount == 0) {
+            // nothing to pair, the text is its own result
+            mLength = length;
+            return;
+        }
+
+        // second pass: pair the flags and build the text. Characters between two flags are copied at once,
+        // and only once a flag was stripped.
+        Arrays.fill(opens, 0, ruleCount, INVALID_INDEX);
+        int j = keepFlags ? start : 0;
+        int copied = start;
+
+        for (int c = 0; c < candidateCount; c++) {
+            int i = candidates[c];
+            int next = nextIndices[c];
+            int rule = tokens[c];
+            int flagLength = rules.getFlagLength(rule);
+            int at = j + i - copied;
+
+            if (opens[rule] == INVALID_INDEX) {
+                if (next == INVALID_INDEX || candidates[next] == i + flagLength) {
+                    continue;
+                }
+                opens[rule] = keepFlags ? at + flagLength : at;
+            } else {
+                addSpan(opens[rule], at, rules.getType(rule), flagLength);
+                opens[rule] = INVALID_INDEX;
+            }
+
+            if (keepFlags) {
+                j = at + flagLength;
+            } else {
+                if (mStripped) {
+                    getChars(text, copied, i, mChars, j);
+                } else {
+                    getChars(text, start, i, mChars, 0);
+                    mStripped = true;
+                }
+                j = at;
+            }
+            copied = i + flagLength;
+        }
+
+        if (mStripped) {
+            getChars(text, copied, end, mChars, j);
+            j += end - copied;
+        }
+
+        mLength = keepFlags || !mStripped ? length : j;
+    }
+
+    /**
+     * Copies the characters between start and end of the text, in bulk for the common text classes.
+     */
+    private static void getChars(CharSequence text, int start, int end, char[] dest, int destStart) {
+        if (text instanceof String) {
+            ((String) text).getChars(start, end, dest, destStart);
+        } else if (text instanceof StringBuilder) {
+            ((StringBuilder) text).getChars(start, end, dest, destStart);
+        } else {
+            for (int i = start; i < end; i++) {
+                dest[destStart++] = text.charAt(i);
+            }
+        }
+    }
+
+    /**
+     * @return text of the last parse. A new String is built only when flags were stripped, otherwise the
+     * input sequence itself is returned.
+     */
+    public CharSequence getText() {
+        if (mStripped) {
+            return new String(mChars, 0, mLength);
+        }
+        if (mRegionStart == 0 && mRegionEnd == mSource.length()) {
+            return mSource;
+        }
+        return mSource.subSequence(mRegionStart, mRegionEnd);
+    }
+
+    /**
+     * @return number of spans found by the last parse.
+     */
+    @Override
+    public int getSpanCount() {
+        return mSpanCount;
+    }
+
+    /**
+     * @return start offset of the span, in the coordinates of {@link #getText()}.
+     */
+    @Override
+    public int getSpanStart(int index) {
+        return mStarts[index];
+    }
+
+    /**
+     * @return end offset of the span, in the coordinates of {@link #getText()}.
+     */
+    @Override
+    public int getSpanEnd(int index) {
+        return mEnds[index];
+    }
+
+    /**
+     * @return type of the span, the flag character for the default rules.
+     */
+    @Override
+    public char getSpanType(int index) {
+        return (char) mTypes[index];
+    }
+
+    @Override
+    public int getSpanFlagLength(int index) {
+        return mTypes[index] >>> FLAG_LENGTH_SHIFT;
+    }
+
+    /**
+     * @return immutable copy of the last parse, safe to hand over to another thread.
+     */
+    public WhatsappParseResult getResult() {
+        return new WhatsappParseResult(getText().toString(), copyOf(mStarts, mSpanCount),
+                copyOf(mEnds, mSpanCount), copyOf(mTypes, mSpanCount), mKeepFlags);
+    }
+
+    /**
+     * Releases the parsed text and any oversized buffer. The parser stays usable.
+     */
+    public void recycle() {
+        mSource = null;
+        mRegionStart = mRegionEnd = 0;
+        mSpanCount = 0;
+        mLength = 0;
+        mStripped = false;
+
+        if (mNextIndices.length > MAX_RETAINED_CAPACITY) {
+            mNextIndices = new int[INITIAL_CAPACITY];
+            mCandidates = new int[INITIAL_CAPACITY];
+            mTokens = new byte[INITIAL_CAPACITY];
+        }
+        if (mChars.length > MAX_RETAINED_CAPACITY) {
+            mChars = new char[INITIAL_CAPACITY];
+        }
+        if (mStarts.length > MAX_RETAINED_CAPACITY) {
+            mStarts = new int[INITIAL_CAPACITY];
+            mEnds = new int[INITIAL_CAPACITY];
+            mTypes = new int[INITIAL_CAPACITY];
+        }
+    }
+
+    private void addSpan(int start, int end, char type, int flagLength) {
+
+        if (mSpanCount == mStarts.length) {
+            int capacity = grow(mStarts.length, mSpanCount + 1);
+            mStarts = copyOf(mStarts, capacity);
+            mEnds = copyOf(mEnds, capacity);
+            mTypes = copyOf(mTypes, capacity);
+        }
+
+        mStarts[mSpanCount] = start;
+        mEnds[mSpanCount] = end;
+        mTypes[mSpanCount] = type | flagLength << FLAG_LENGTH_SHIFT;
+        mSpanCount++;
+    }
+
+    private static int grow(int capacity, int required) {
+        while (capacity < required) {
+            capacity = capacity < INITIAL_CAPACITY ? INITIAL_CAPACITY : capacity * 2;
+        }
+        return capacity;
+    }
+
+    private static int[] copyOf(int[] array, int capacity) {
+        int[] copy = new int[capacity];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, capacity));
+        return copy;
+    }
+}
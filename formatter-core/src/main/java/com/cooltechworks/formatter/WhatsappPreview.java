@@ -0,0 +1,295 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+import java.util.Arrays;
+
+import static com.cooltechworks.formatter.WhatsappMarkup.INVALID_INDEX;
+import static com.cooltechworks.formatter.WhatsappMarkup.NEW_LINE;
+import static com.cooltechworks.formatter.WhatsappParser.FLAG_LENGTH_SHIFT;
+
+/**
+ * Formatted beginning of a text, for chat list rows and notifications showing the first characters or lines
+ * of a message.
+ *
+ * Only the lines of the prefix are parsed. In the line the prefix is cut in, parsing stops as soon as every
+ * flag before the cut is known to pair or not, so the spans of the prefix are the ones of the whole text cut
+ * to the prefix. Parsing also stops {@link #MAX_LOOK_AHEAD} characters after the cut, so the cost does not
+ * grow with the length of the message: a flag closed further than that is shown as written.
+ */
+public final class WhatsappPreview {
+
+    /**
+     * Value of a limit that does not apply.
+     */
+    public static final int NO_LIMIT = Integer.MAX_VALUE;
+
+    /**
+     * Number of characters read after the cut to find the closing flags of the spans opened before it.
+     */
+    public static final int MAX_LOOK_AHEAD = 4096;
+
+    private final WhatsappParseResult mResult;
+    private final int mPrefixEnd;
+    private final boolean mTruncated;
+
+    private WhatsappPreview(WhatsappParseResult result, int prefixEnd, boolean truncated) {
+        mResult = result;
+        mPrefixEnd = prefixEnd;
+        mTruncated = truncated;
+    }
+
+    /**
+     * Formats the beginning of the text with the default rules, flags stripped.
+     * @param text - raw text.
+     * @param maxLength - maximum number of formatted characters, or {@link #NO_LIMIT}.
+     * @param maxLines - maximum number of lines, or {@link #NO_LIMIT}.
+     * @return formatted prefix.
+     */
+    public static WhatsappPreview parse(CharSequence text, int maxLength, int maxLines) {
+        return parse(text, maxLength, maxLines, WhatsappRules.DEFAULT);
+    }
+
+    /**
+     * Formats the beginning of the text with the given rules, flags stripped.
+     * @param text - raw text.
+     * @param maxLength - maximum number of formatted characters, or {@link #NO_LIMIT}.
+     * @param maxLines - maximum number of lines, or {@link #NO_LIMIT}.
+     * @param rules - markup rules.
+     * @return formatted prefix.
+     */
+    public static WhatsappPreview parse(CharSequence text, int maxLength, int maxLines, WhatsappRules rules) {
+
+        if (maxLength < 0 || maxLines < 0) {
+            throw new IllegalArgumentException("Negative preview limit");
+        }
+
+        int length = text.length();
+
+        // end of the line limit, found while the cut moves forward
+        int linesEnd = maxLines == 0 ? 0 : INVALID_INDEX;
+        int lines = 0, scanned = 0;
+
+        WhatsappParser parser = WhatsappParser.obtain();
+        FlagIndex flags;
+        int cut = Math.min(maxLength, length);
+
+        // formatted characters are at most as many as raw ones: grow the cut by the stripped flags until the
+        // prefix holds maxLength formatted characters or reaches the line limit
+        while (true) {
+            while (linesEnd == INVALID_INDEX && scanned < cut) {
+                if (text.charAt(scanned) == NEW_LINE && ++lines == maxLines) {
+                    linesEnd = scanned;
+                }
+                scanned++;
+            }
+            if (linesEnd != INVALID_INDEX && linesEnd < cut) {
+                cut = linesEnd;
+            }
+
+            boolean lineEnd = cut == linesEnd || cut == length;
+            parser.parse(text, 0, lineEnd ? cut : resolvedEnd(text, cut, rules), true, rules);
+            flags = new FlagIndex(parser);
+
+            int shown = cut - flags.charsBefore(cut);
+            if (shown >= maxLength || lineEnd) {
+                break;
+            }
+            cut = Math.min(length, cut + maxLength - shown);
+        }
+
+        // closing flags of the shown spans right after the cut belong to the prefix
+        int prefixEnd = cut;
+        for (boolean extended = true; extended; ) {
+            extended = false;
+            for (int i = 0; i < parser.getSpanCount(); i++) {
+                int close = parser.getSpanEnd(i);
+                int closeEnd = close + parser.getSpanFlagLength(i);
+                if (parser.getSpanStart(i) < cut && close <= prefixEnd && closeEnd > prefixEnd) {
+                    prefixEnd = closeEnd;
+                    extended = true;
+                }
+            }
+        }
+
+        WhatsappParseResult result = strip(text, cut, parser, flags);
+        parser.recycle();
+
+        return new WhatsappPreview(result, prefixEnd, prefixEnd < length);
+    }
+
+    /**
+     * @return formatted prefix and its spans.
+     */
+    public WhatsappParseResult getResult() {
+        return mResult;
+    }
+
+    /**
+     * @return offset in the raw text where the prefix ends, the text length if the whole text is shown.
+     */
+    public int getPrefixEnd() {
+        return mPrefixEnd;
+    }
+
+    /**
+     * @return true if the raw text goes on after the prefix, for instance to show an ellipsis. The rest can be
+     * made of flags only, in which case it shows nothing.
+     */
+    public boolean isTruncated() {
+        return mTruncated;
+    }
+
+    /**
+     * Finds where to stop parsing for the flags before the cut to pair as in the whole text. A flag only pairs
+     * with the next flag of its rule in the line, so the line is read up to the first flag after the cut of
+     * each rule seen before it, and at most {@link #MAX_LOOK_AHEAD} characters after the cut.
+     * @return end of the region to parse, the cut or later, and at most the end of its line.
+     */
+    private static int resolvedEnd(CharSequence text, int cut, WhatsappRules rules) {
+
+        int end = text.length() - cut > MAX_LOOK_AHEAD ? cut + MAX_LOOK_AHEAD : text.length();
+
+        int lineStart = cut;
+        while (lineStart > 0 && text.charAt(lineStart - 1) != NEW_LINE) {
+            lineStart--;
+        }
+
+        boolean[] seen = new boolean[rules.getRuleCount()];
+        int pending = 0;
+
+        for (int i = lineStart; i < end; ) {
+            if (i >= cut && pending == 0) {
+                return i;
+            }
+
+            int charClass = rules.classOf(text.charAt(i));
+            if (charClass == WhatsappRules.CLASS_NEW_LINE) {
+                return i;
+            }
+
+            int rule = charClass == WhatsappRules.CLASS_NONE ? INVALID_INDEX : rules.match(text, i, end, charClass);
+            if (rule == INVALID_INDEX) {
+                i++;
+                continue;
+            }
+
+            int flagStart = i;
+            i += rules.getFlagLength(rule);
+            if (flagStart < cut) {
+                if (!seen[rule]) {
+                    seen[rule] = true;
+                    pending++;
+                }
+            } else if (seen[rule]) {
+                seen[rule] = false;
+                if (--pending == 0) {
+                    return i;
+                }
+            }
+        }
+
+        return end;
+    }
+
+    /**
+     * Builds the formatted text of the raw characters before the cut, with the spans cut to it.
+     */
+    private static WhatsappParseResult strip(CharSequence text, int cut, WhatsappParser parser, FlagIndex flags) {
+
+        char[] chars = new char[cut];
+        int j = 0, f = 0;
+        for (int i = 0; i < cut; ) {
+            if (f < flags.mCount && flags.mStarts[f] == i) {
+                i += flags.mRemoved[f + 1] - flags.mRemoved[f];
+                f++;
+            } else {
+                chars[j++] = text.charAt(i++);
+            }
+        }
+
+        int count = parser.getSpanCount();
+        int[] starts = new int[count];
+        int[] ends = new int[count];
+        int[] types = new int[count];
+        int spans = 0;
+
+        for (int i = 0; i < count; i++) {
+            int start = parser.getSpanStart(i);
+            if (start >= cut) {
+                continue;
+            }
+            int end = Math.min(parser.getSpanEnd(i), cut);
+            int displayStart = start - flags.charsBefore(start);
+            int displayEnd = end - flags.charsBefore(end);
+            if (displayStart == displayEnd) {
+                continue;
+            }
+            starts[spans] = displayStart;
+            ends[spans] = displayEnd;
+            types[spans++] = parser.getSpanType(i) | parser.getSpanFlagLength(i) << FLAG_LENGTH_SHIFT;
+        }
+
+        return new WhatsappParseResult(new String(chars, 0, j), Arrays.copyOf(starts, spans),
+                Arrays.copyOf(ends, spans), Arrays.copyOf(types, spans), false);
+    }
+
+    /**
+     * Flags of the parsed spans in text order, with the number of flag characters before each of them.
+     */
+    private static final class FlagIndex {
+
+        final int[] mStarts;
+        final int[] mRemoved;
+        final int mCount;
+
+        FlagIndex(WhatsappParser parser) {
+
+            int count = parser.getSpanCount() * 2;
+            long[] flags = new long[count];
+            for (int i = 0; i < parser.getSpanCount(); i++) {
+                long flagLength = parser.getSpanFlagLength(i);
+                flags[i * 2] = ((parser.getSpanStart(i) - flagLength) << 32) | flagLength;
+                flags[i * 2 + 1] = ((long) parser.getSpanEnd(i) << 32) | flagLength;
+            }
+            Arrays.sort(flags);
+
+            mStarts = new int[count];
+            mRemoved = new int[count + 1];
+            mCount = count;
+            for (int i = 0; i < count; i++) {
+                mStarts[i] = (int) (flags[i] >>> 32);
+                mRemoved[i + 1] = mRemoved[i] + (int) flags[i];
+            }
+        }
+
+        /**
+         * @return number of flag characters before the given raw offset.
+         */
+        int charsBefore(int offset) {
+            int flag = Arrays.binarySearch(mStarts, 0, mCount, offset);
+            // last flag starting before the offset
+            flag = flag >= 0 ? flag - 1 : -flag - 2;
+            if (flag < 0) {
+                return 0;
+            }
+            int flagLength = mRemoved[flag + 1] - mRemoved[flag];
+            return mRemoved[flag] + Math.min(flagLength, offset - mStarts[flag]);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+import static com.cooltechworks.formatter.WhatsappMarkup.BOLD_FLAG;
+import static com.cooltechworks.formatter.WhatsappMarkup.ITALIC_FLAG;
+import static com.cooltechworks.formatter.WhatsappMarkup.NEW_LINE;
+import static com.cooltechworks.formatter.WhatsappMarkup.STRIKE_FLAG;
+
+/**
+ * Markup rule: text between two flags of the rule, on the same line, gets the span of the rule type.
+ */
+public final class WhatsappRule {
+
+    public static final WhatsappRule BOLD = new WhatsappRule(String.valueOf(BOLD_FLAG), BOLD_FLAG);
+    public static final WhatsappRule STRIKE = new WhatsappRule(String.valueOf(STRIKE_FLAG), STRIKE_FLAG);
+    public static final WhatsappRule ITALIC = new WhatsappRule(String.valueOf(ITALIC_FLAG), ITALIC_FLAG);
+
+    /**
+     * Monospace text between triple backquotes. Not part of {@link WhatsappRules#DEFAULT}.
+     */
+    public static final WhatsappRule MONOSPACE = new WhatsappRule("```", '`');
+
+    private final String mFlag;
+    private final char mType;
+
+    /**
+     * @param flag - flag string, opening and closing the span.
+     * @param type - type of the spans of the rule, reported by {@link WhatsappSpanList#getSpanType(int)}.
+     */
+    public WhatsappRule(String flag, char type) {
+
+        if (flag.isEmpty() || flag.indexOf(NEW_LINE) != -1) {
+            throw new IllegalArgumentException("Invalid flag \"" + flag + "\"");
+        }
+        if (type == 0) {
+            throw new IllegalArgumentException("Invalid type 0");
+        }
+
+        mFlag = flag;
+        mType = type;
+    }
+
+    /**
+     * @return flag string of the rule.
+     */
+    public String getFlag() {
+        return mFlag;
+    }
+
+    /**
+     * @return type of the spans of the rule.
+     */
+    public char getType() {
+        return mType;
+    }
+}
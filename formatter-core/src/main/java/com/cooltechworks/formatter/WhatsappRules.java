@@ -0,0 +1,248 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+import java.util.Arrays;
+
+import static com.cooltechworks.formatter.WhatsappMarkup.INVALID_INDEX;
+import static com.cooltechworks.formatter.WhatsappMarkup.NEW_LINE;
+
+/**
+ * Immutable set of {@link WhatsappRule}, compiled once for the parser.
+ *
+ * Every character is classified by a single lookup in a table indexed by the character. Flags longer than
+ * one character are then matched by walking a small trie of the flags, the longest flag winning.
+ */
+public final class WhatsappRules {
+
+    /**
+     * WhatsApp rules: bold, strike and italic.
+     */
+    public static final WhatsappRules DEFAULT = new WhatsappRules(WhatsappRule.BOLD, WhatsappRule.STRIKE, WhatsappRule.ITALIC);
+
+    /**
+     * Most rules of a set.
+     */
+    public static final int MAX_RULES = 127;
+
+    /**
+     * Classes of the characters that do not start a flag. Other classes are trie states.
+     */
+    static final int CLASS_NONE = 0;
+    static final int CLASS_NEW_LINE = -1;
+
+    private static final int ROOT = 0;
+
+    private final WhatsappRule[] mRules;
+    private final char[] mTypes;
+    private final int[] mFlagLengths;
+
+    /**
+     * Class of every character up to the highest flag starting character.
+     */
+    private final int[] mClasses;
+
+    /**
+     * Tells, for every character up to the highest flag character, whether it is part of a flag.
+     */
+    private final boolean[] mFlagChars;
+
+    /**
+     * Trie of the flags: edges of state s are mEdgeChars[mEdgeStarts[s] .. mEdgeStarts[s + 1]], leading to
+     * mEdgeTargets. mAccepts holds the rule index ending at a state, {@link WhatsappMarkup#INVALID_INDEX} if none.
+     */
+    private final int[] mEdgeStarts;
+    private final char[] mEdgeChars;
+    private final int[] mEdgeTargets;
+    private final int[] mAccepts;
+
+    /**
+     * @param rules - rules of the set. Flags and types must be unique.
+     */
+    public WhatsappRules(WhatsappRule... rules) {
+
+        if (rules.length > MAX_RULES) {
+            throw new IllegalArgumentException("More than " + MAX_RULES + " rules");
+        }
+
+        mRules = rules.clone();
+        mTypes = new char[mRules.length];
+        mFlagLengths = new int[mRules.length];
+
+        // build the trie with one child list per state, then flatten it
+        StringBuilder[] children = new StringBuilder[1];
+        int[][] targets = new int[1][];
+        int[] accepts = {INVALID_INDEX};
+        int states = 1;
+        char maxFirst = NEW_LINE;
+        char maxChar = NEW_LINE;
+
+        for (int r = 0; r < mRules.length; r++) {
+            String flag = mRules[r].getFlag();
+
+            for (int other = 0; other < r; other++) {
+                if (mRules[other].getType() == mRules[r].getType() || mRules[other].getFlag().equals(flag)) {
+                    throw new IllegalArgumentException("Duplicate rule \"" + flag + "\"");
+                }
+            }
+
+            mTypes[r] = mRules[r].getType();
+            mFlagLengths[r] = flag.length();
+            maxFirst = (char) Math.max(maxFirst, flag.charAt(0));
+            for (int i = 0; i < flag.length(); i++) {
+                maxChar = (char) Math.max(maxChar, flag.charAt(i));
+            }
+
+            int state = ROOT;
+            for (int i = 0; i < flag.length(); i++) {
+                if (children[state] == null) {
+                    children[state] = new StringBuilder();
+                    targets[state] = new int[0];
+                }
+
+                int edge = children[state].indexOf(String.valueOf(flag.charAt(i)));
+                if (edge != INVALID_INDEX) {
+                    state = targets[state][edge];
+                    continue;
+                }
+
+                if (states == accepts.length) {
+                    children = Arrays.copyOf(children, states * 2);
+                    targets = Arrays.copyOf(targets, states * 2);
+                    accepts = Arrays.copyOf(accepts, states * 2);
+                }
+                accepts[states] = INVALID_INDEX;
+
+                children[state].append(flag.charAt(i));
+                targets[state] = Arrays.copyOf(targets[state], targets[state].length + 1);
+                targets[state][targets[state].length - 1] = states;
+                state = states++;
+            }
+
+            accepts[state] = r;
+        }
+
+        mEdgeStarts = new int[states + 1];
+        for (int s = 0; s < states; s++) {
+            mEdgeStarts[s + 1] = mEdgeStarts[s] + (children[s] == null ? 0 : children[s].length());
+        }
+
+        mEdgeChars = new char[mEdgeStarts[states]];
+        mEdgeTargets = new int[mEdgeStarts[states]];
+        for (int s = 0; s < states; s++) {
+            if (children[s] != null) {
+                children[s].getChars(0, children[s].length(), mEdgeChars, mEdgeStarts[s]);
+                System.arraycopy(targets[s], 0, mEdgeTargets, mEdgeStarts[s], targets[s].length);
+            }
+        }
+        mAccepts = Arrays.copyOf(accepts, states);
+
+        mFlagChars = new boolean[maxChar + 1];
+        for (int r = 0; r < mRules.length; r++) {
+            String flag = mRules[r].getFlag();
+            for (int i = 0; i < flag.length(); i++) {
+                mFlagChars[flag.charAt(i)] = true;
+            }
+        }
+
+        mClasses = new int[maxFirst + 1];
+        mClasses[NEW_LINE] = CLASS_NEW_LINE;
+        for (int e = mEdgeStarts[ROOT]; e < mEdgeStarts[ROOT + 1]; e++) {
+            mClasses[mEdgeChars[e]] = mEdgeTargets[e];
+        }
+    }
+
+    /**
+     * @return number of rules.
+     */
+    public int getRuleCount() {
+        return mRules.length;
+    }
+
+    /**
+     * @return rule at the given index.
+     */
+    public WhatsappRule getRule(int index) {
+        return mRules[index];
+    }
+
+    /**
+     * @return true if the character starts a flag of the set.
+     */
+    public boolean isFlagStart(char c) {
+        return classOf(c) > 0;
+    }
+
+    /**
+     * @return true if the character is part of a flag of the set.
+     */
+    public boolean isFlagChar(char c) {
+        return c < mFlagChars.length && mFlagChars[c];
+    }
+
+    char getType(int rule) {
+        return mTypes[rule];
+    }
+
+    int getFlagLength(int rule) {
+        return mFlagLengths[rule];
+    }
+
+    /**
+     * @return {@link #CLASS_NONE}, {@link #CLASS_NEW_LINE} or the trie state reached by the character.
+     */
+    int classOf(char c) {
+        return c < mClasses.length ? mClasses[c] : CLASS_NONE;
+    }
+
+    /**
+     * Matches the longest flag starting at the given index.
+     * @param text - text.
+     * @param index - index of the flag start, whose class is state.
+     * @param end - end of the line or region.
+     * @param state - class of the character at index.
+     * @return index of the matched rule, {@link WhatsappMarkup#INVALID_INDEX} if none.
+     */
+    int match(CharSequence text, int index, int end, int state) {
+
+        int rule = mAccepts[state];
+
+        for (int i = index + 1; i < end && mEdgeStarts[state] < mEdgeStarts[state + 1]; i++) {
+            int next = INVALID_INDEX;
+            char c = text.charAt(i);
+
+            for (int e = mEdgeStarts[state]; e < mEdgeStarts[state + 1]; e++) {
+                if (mEdgeChars[e] == c) {
+                    next = mEdgeTargets[e];
+                    break;
+                }
+            }
+
+            if (next == INVALID_INDEX) {
+                break;
+            }
+
+            state = next;
+            if (mAccepts[state] != INVALID_INDEX) {
+                rule = mAccepts[state];
+            }
+        }
+
+        return rule;
+    }
+}
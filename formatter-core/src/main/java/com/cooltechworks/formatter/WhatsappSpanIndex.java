@@ -0,0 +1,316 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+import java.util.Arrays;
+
+import static com.cooltechworks.formatter.WhatsappParser.FLAG_LENGTH_SHIFT;
+
+/**
+ * Compact binary encoding of the flags of a raw text, to be stored next to the text and turned back into a
+ * {@link WhatsappParseResult} without parsing.
+ *
+ * Layout, every number being an unsigned varint:
+ * <pre>
+ * version, raw text length, span count,
+ * then for each span in opening flag order: type with the flag length minus one above bit 16, opening
+ * flag offset from the previous opening flag, closing flag offset from the opening flag.
+ * </pre>
+ */
+public final class WhatsappSpanIndex {
+
+    /**
+     * Current version of the encoding.
+     */
+    public static final int VERSION = 1;
+
+    private WhatsappSpanIndex() {
+    }
+
+    /**
+     * Parses the raw text and encodes its flags.
+     * @param text - raw text.
+     * @return encoded span index.
+     */
+    public static byte[] encode(CharSequence text) {
+        return encode(text, WhatsappRules.DEFAULT);
+    }
+
+    /**
+     * Parses the raw text with the given rules and encodes its flags.
+     * @param text - raw text.
+     * @param rules - markup rules.
+     * @return encoded span index.
+     */
+    public static byte[] encode(CharSequence text, WhatsappRules rules) {
+
+        WhatsappParser parser = WhatsappParser.obtain();
+        parser.parse(text, true, rules);
+
+        int count = parser.getSpanCount();
+
+        // spans are found in closing order, sort them by opening flag
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = ((long) (parser.getSpanStart(i) - parser.getSpanFlagLength(i)) << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        byte[] buffer = new byte[5 * (3 + count * 3)];
+        int position = 0;
+
+        position = writeVarint(buffer, position, VERSION);
+        position = writeVarint(buffer, position, text.length());
+        position = writeVarint(buffer, position, count);
+
+        int previousOpen = 0;
+        for (int i = 0; i < count; i++) {
+            int span = (int) keys[i];
+            int flagLength = parser.getSpanFlagLength(span);
+            int open = parser.getSpanStart(span) - flagLength;
+            int close = parser.getSpanEnd(span);
+
+            position = writeVarint(buffer, position, parser.getSpanType(span) | (flagLength - 1) << FLAG_LENGTH_SHIFT);
+            position = writeVarint(buffer, position, open - previousOpen);
+            position = writeVarint(buffer, position, close - open);
+            previousOpen = open;
+        }
+
+        parser.recycle();
+        return Arrays.copyOf(buffer, position);
+    }
+
+    /**
+     * Rebuilds the parse result of a raw text from its span index, without parsing the text.
+     * @param index - span index from {@link #encode(CharSequence)}.
+     * @param text - raw text the index was built from.
+     * @param keepFlags - true to keep the flag characters (EditText), false to strip them (TextView).
+     * @return parse result, same as parsing the text.
+     * @throws IllegalArgumentException if the index has an unknown version or does not match the text.
+     */
+    public static WhatsappParseResult decode(byte[] index, CharSequence text, boolean keepFlags) {
+        return decode(index, text, keepFlags, WhatsappRules.DEFAULT);
+    }
+
+    /**
+     * Rebuilds the parse result of a raw text from its span index, without parsing the text.
+     * @param index - span index from {@link #encode(CharSequence, WhatsappRules)}.
+     * @param text - raw text the index was built from.
+     * @param keepFlags - true to keep the flag characters (EditText), false to strip them (TextView).
+     * @param rules - markup rules the index was built with.
+     * @return parse result, same as parsing the text.
+     * @throws IllegalArgumentException if the index has an unknown version or does not match the text: its
+     * length, the span offsets, or the flags found at these offsets.
+     */
+    public static WhatsappParseResult decode(byte[] index, CharSequence text, boolean keepFlags,
+                                             WhatsappRules rules) {
+
+        int[] position = {0};
+
+        int version = readVarint(index, position);
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported span index version " + version);
+        }
+
+        int length = text.length();
+        if (readVarint(index, position) != length) {
+            throw new IllegalArgumentException("Span index does not match the text");
+        }
+
+        // every span has two flags of one character at least
+        int count = readVarint(index, position);
+        if (count < 0 || count > length / 2) {
+            throw new IllegalArgumentException("Span index does not match the text");
+        }
+
+        int[] opens = new int[count];
+        int[] closes = new int[count];
+        int[] types = new int[count];
+
+        int open = 0;
+        for (int i = 0; i < count; i++) {
+            // stored lengths are minus one so that single character flags stay in the type bits
+            int type = readVarint(index, position) + (1 << FLAG_LENGTH_SHIFT);
+            int flagLength = type >>> FLAG_LENGTH_SHIFT;
+            int openOffset = readVarint(index, position);
+            int closeOffset = readVarint(index, position);
+
+            // opening flags in text order, each span with its closing flag after its opening flag
+            if (type < 0 || flagLength == 0 || openOffset < 0 || openOffset > length - open) {
+                throw new IllegalArgumentException("Span index does not match the text");
+            }
+            open += openOffset;
+            if (closeOffset < flagLength || closeOffset > length - open - flagLength) {
+                throw new IllegalArgumentException("Span index does not match the text");
+            }
+
+            if (!isFlagAt(text, open, type, rules) || !isFlagAt(text, open + closeOffset, type, rules)) {
+                throw new IllegalArgumentException("Span index does not match the text");
+            }
+
+            types[i] = type;
+            opens[i] = open;
+            closes[i] = open + closeOffset;
+        }
+
+        if (keepFlags) {
+            int[] starts = new int[count];
+            for (int i = 0; i < count; i++) {
+                starts[i] = opens[i] + (types[i] >>> FLAG_LENGTH_SHIFT);
+            }
+            return new WhatsappParseResult(text.toString(), starts, closes, types, true);
+        }
+
+        return strip(text, opens, closes, types);
+    }
+
+    /**
+     * Reads the offset map of a raw text from its span index, without the text.
+     * @param index - span index from {@link #encode(CharSequence)}.
+     * @return map between the raw text offsets and the offsets of its formatted text, flags stripped.
+     * @throws IllegalArgumentException if the index has an unknown version.
+     */
+    public static WhatsappOffsetMap decodeOffsetMap(byte[] index) {
+
+        int[] position = {0};
+
+        int version = readVarint(index, position);
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported span index version " + version);
+        }
+        readVarint(index, position);
+
+        int count = readVarint(index, position);
+        long[] flags = new long[count * 2];
+
+        int open = 0;
+        for (int i = 0; i < count; i++) {
+            long flagLength = (readVarint(index, position) >>> FLAG_LENGTH_SHIFT) + 1;
+            open += readVarint(index, position);
+            flags[i * 2] = ((long) open << 32) | flagLength;
+            flags[i * 2 + 1] = ((long) (open + readVarint(index, position)) << 32) | flagLength;
+        }
+
+        Arrays.sort(flags);
+        return WhatsappOffsetMap.ofRawFlags(flags);
+    }
+
+    /**
+     * Removes the flags from the text and maps the spans to the stripped text.
+     */
+    private static WhatsappParseResult strip(CharSequence text, int[] opens, int[] closes, int[] types) {
+
+        int count = opens.length;
+
+        // closing flags in text order, with their length in the low bits
+        long[] sortedCloses = new long[count];
+        for (int i = 0; i < count; i++) {
+            sortedCloses[i] = ((long) closes[i] << 32) | (types[i] >>> FLAG_LENGTH_SHIFT);
+        }
+        Arrays.sort(sortedCloses);
+
+        // flags in text order, and the number of flag characters before each one
+        int[] flags = new int[count * 2];
+        int[] flagLengths = new int[count * 2];
+        int[] removed = new int[count * 2 + 1];
+        for (int i = 0, o = 0, c = 0; i < flags.length; i++) {
+            if (c == count || (o < count && opens[o] < (int) (sortedCloses[c] >>> 32))) {
+                flags[i] = opens[o];
+                flagLengths[i] = types[o++] >>> FLAG_LENGTH_SHIFT;
+            } else {
+                flags[i] = (int) (sortedCloses[c] >>> 32);
+                flagLengths[i] = (int) sortedCloses[c++];
+            }
+            if (i > 0 && flags[i] < flags[i - 1] + flagLengths[i - 1]) {
+                throw new IllegalArgumentException("Span index does not match the text");
+            }
+            removed[i + 1] = removed[i] + flagLengths[i];
+        }
+
+        char[] chars = new char[text.length() - removed[flags.length]];
+        int j = 0;
+        for (int i = 0, f = 0; i < text.length(); i++) {
+            if (f < flags.length && flags[f] == i) {
+                i += flagLengths[f++] - 1;
+            } else {
+                chars[j++] = text.charAt(i);
+            }
+        }
+
+        int[] starts = new int[count];
+        int[] ends = new int[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = opens[i] - removed[Arrays.binarySearch(flags, opens[i])];
+            ends[i] = closes[i] - removed[Arrays.binarySearch(flags, closes[i])];
+        }
+
+        return new WhatsappParseResult(new String(chars, 0, j), starts, ends, types, false);
+    }
+
+    /**
+     * @param type - span type, with its flag length above {@link WhatsappParser#FLAG_LENGTH_SHIFT}.
+     * @return true if the flag of a rule of the span type is at the given offset of the text.
+     */
+    private static boolean isFlagAt(CharSequence text, int offset, int type, WhatsappRules rules) {
+
+        int flagLength = type >>> FLAG_LENGTH_SHIFT;
+
+        for (int rule = 0; rule < rules.getRuleCount(); rule++) {
+            if (rules.getType(rule) != (char) type || rules.getFlagLength(rule) != flagLength) {
+                continue;
+            }
+
+            String flag = rules.getRule(rule).getFlag();
+            int i = 0;
+            while (i < flagLength && text.charAt(offset + i) == flag.charAt(i)) {
+                i++;
+            }
+            if (i == flagLength) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int writeVarint(byte[] buffer, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    private static int readVarint(byte[] buffer, int[] position) {
+
+        int value = 0;
+
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (position[0] >= buffer.length) {
+                throw new IllegalArgumentException("Truncated span index");
+            }
+            byte b = buffer[position[0]++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IllegalArgumentException("Malformed span index");
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+/**
+ * Read access to a list of parsed flag spans.
+ */
+public interface WhatsappSpanList {
+
+    /**
+     * @return number of spans.
+     */
+    int getSpanCount();
+
+    /**
+     * @return start offset of the span.
+     */
+    int getSpanStart(int index);
+
+    /**
+     * @return end offset of the span.
+     */
+    int getSpanEnd(int index);
+
+    /**
+     * @return type of the span, the flag character for the default rules.
+     */
+    char getSpanType(int index);
+
+    /**
+     * @return length of the flags around the span.
+     */
+    int getSpanFlagLength(int index);
+}
@@ -0,0 +1,391 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.cooltechworks.formatter.WhatsappMarkup.BOLD_FLAG;
+import static com.cooltechworks.formatter.WhatsappMarkup.ITALIC_FLAG;
+import static com.cooltechworks.formatter.WhatsappMarkup.NEW_LINE;
+import static com.cooltechworks.formatter.WhatsappMarkup.STRIKE_FLAG;
+
+/**
+ * Streaming formatter for large texts such as exported chat archives.
+ *
+ * Flags never cross a {@link WhatsappMarkup#NEW_LINE}, so the input is cut in chunks of whole lines that are
+ * parsed independently, in parallel, and written to a {@link Sink} in input order. Only a bounded number of
+ * chunks is in memory at any time, whatever the size of the input.
+ */
+public class WhatsappStreamFormatter {
+
+    /**
+     * Default size of a chunk, in bytes for files and in chars for readers.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int mChunkSize;
+    private final int mThreads;
+    private final WhatsappRules mRules;
+
+    /**
+     * Receives the formatted chunks, in input order.
+     */
+    public interface Sink {
+
+        /**
+         * @param chunk - formatted chunk: whole lines with the flags stripped, and their spans.
+         */
+        void write(WhatsappParseResult chunk) throws IOException;
+    }
+
+    public WhatsappStreamFormatter() {
+        this(DEFAULT_CHUNK_SIZE, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param chunkSize - size of a chunk. Lines longer than a chunk are kept whole.
+     * @param threads - number of chunks parsed in parallel.
+     */
+    public WhatsappStreamFormatter(int chunkSize, int threads) {
+        this(chunkSize, threads, WhatsappRules.DEFAULT);
+    }
+
+    /**
+     * @param chunkSize - size of a chunk. Lines longer than a chunk are kept whole.
+     * @param threads - number of chunks parsed in parallel.
+     * @param rules - markup rules.
+     */
+    public WhatsappStreamFormatter(int chunkSize, int threads, WhatsappRules rules) {
+        mChunkSize = chunkSize;
+        mThreads = Math.max(1, threads);
+        mRules = rules;
+    }
+
+    /**
+     * Formats an UTF-8 file, memory mapped one chunk at a time.
+     */
+    public void format(File file, Sink sink) throws IOException {
+
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+
+        try {
+            FileChannel channel = input.getChannel();
+            long size = channel.size();
+            long position = 0;
+
+            ArrayDeque<Future<WhatsappParseResult>> pending = new ArrayDeque<>();
+
+            while (position < size) {
+                long end = findChunkEnd(channel, position, size);
+                final MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, position, end - position);
+                position = end;
+
+                submit(executor, pending, new Callable<WhatsappParseResult>() {
+                    @Override
+                    public WhatsappParseResult call() throws Exception {
+                        CharBuffer chars = UTF_8.newDecoder()
+                                .onMalformedInput(CodingErrorAction.REPLACE)
+                                .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                                .decode(bytes);
+                        return parse(chars);
+                    }
+                }, sink);
+            }
+
+            drain(pending, 0, sink);
+        } finally {
+            executor.shutdownNow();
+            input.close();
+        }
+    }
+
+    /**
+     * Formats the text of a reader, read one chunk at a time.
+     */
+    public void format(Reader reader, Sink sink) throws IOException {
+
+        ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+
+        try {
+            ArrayDeque<Future<WhatsappParseResult>> pending = new ArrayDeque<>();
+            char[] buffer = new char[mChunkSize];
+            StringBuilder chunk = new StringBuilder(mChunkSize);
+            int read;
+
+            while ((read = reader.read(buffer)) != -1) {
+
+                int lineEnd = lastIndexOf(buffer, read, NEW_LINE);
+                if (lineEnd == WhatsappMarkup.INVALID_INDEX) {
+                    chunk.append(buffer, 0, read);
+                    continue;
+                }
+
+                chunk.append(buffer, 0, lineEnd + 1);
+                final String text = chunk.toString();
+                chunk.setLength(0);
+                chunk.append(buffer, lineEnd + 1, read - lineEnd - 1);
+
+                submit(executor, pending, new Callable<WhatsappParseResult>() {
+                    @Override
+                    public WhatsappParseResult call() {
+                        return parse(text);
+                    }
+                }, sink);
+            }
+
+            drain(pending, 0, sink);
+
+            // last line without a line break, after every pending chunk
+            if (chunk.length() > 0) {
+                sink.write(parse(chunk));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void submit(ExecutorService executor, ArrayDeque<Future<WhatsappParseResult>> pending,
+                        Callable<WhatsappParseResult> task, Sink sink) throws IOException {
+        drain(pending, mThreads * 2 - 1, sink);
+        pending.add(executor.submit(task));
+    }
+
+    /**
+     * Writes the oldest chunks until at most maxPending are left.
+     */
+    private static void drain(ArrayDeque<Future<WhatsappParseResult>> pending, int maxPending, Sink sink) throws IOException {
+
+        while (pending.size() > maxPending) {
+            try {
+                sink.write(pending.poll().get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    private WhatsappParseResult parse(CharSequence chunk) {
+        WhatsappParser parser = WhatsappParser.obtain();
+        parser.parse(chunk, false, mRules);
+        WhatsappParseResult result = parser.getResult();
+        parser.recycle();
+        return result;
+    }
+
+    /**
+     * @return end of the chunk starting at position: just after the last new line of the chunk, or the next one
+     * if the chunk holds none.
+     */
+    private long findChunkEnd(FileChannel channel, long position, long size) throws IOException {
+
+        long end = Math.min(position + mChunkSize, size);
+        if (end == size) {
+            return end;
+        }
+
+        MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, end - position);
+        for (int i = window.limit() - 1; i >= 0; i--) {
+            if (window.get(i) == NEW_LINE) {
+                return position + i + 1;
+            }
+        }
+
+        while (end < size) {
+            long windowEnd = Math.min(end + mChunkSize, size);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, end, windowEnd - end);
+            for (int i = 0; i < window.limit(); i++) {
+                if (window.get(i) == NEW_LINE) {
+                    return end + i + 1;
+                }
+            }
+            end = windowEnd;
+        }
+
+        return size;
+    }
+
+    private static int lastIndexOf(char[] buffer, int length, char c) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer[i] == c) {
+                return i;
+            }
+        }
+        return WhatsappMarkup.INVALID_INDEX;
+    }
+
+    /**
+     * Writes the formatted text as HTML, one &lt;br&gt; per line. Spans of other types than bold, italic and
+     * strike are written as plain text.
+     */
+    public static class HtmlSink implements Sink {
+
+        private static final String FLAGS = "" + BOLD_FLAG + ITALIC_FLAG + STRIKE_FLAG;
+        private static final String[] OPEN_TAGS = {"<b>", "<i>", "<s>"};
+        private static final String[] CLOSE_TAGS = {"</b>", "</i>", "</s>"};
+
+        private final Writer mWriter;
+
+        /**
+         * Number of spans of each flag covering the current position.
+         */
+        private final int[] mActive = new int[FLAGS.length()];
+
+        public HtmlSink(Writer writer) {
+            mWriter = writer;
+        }
+
+        @Override
+        public void write(WhatsappParseResult chunk) throws IOException {
+
+            String text = chunk.getText();
+            int count = chunk.getSpanCount();
+
+            // span starts and ends as position << 32 | flag << 1 | isStart, swept in position order
+            long[] events = new long[count * 2];
+            for (int i = 0; i < count; i++) {
+                events[i * 2] = ((long) chunk.getSpanStart(i) << 32) | (chunk.getSpanType(i) << 1) | 1;
+                events[i * 2 + 1] = ((long) chunk.getSpanEnd(i) << 32) | (chunk.getSpanType(i) << 1);
+            }
+            Arrays.sort(events);
+
+            int position = 0;
+
+            for (int i = 0; i < events.length; ) {
+                int eventPosition = (int) (events[i] >>> 32);
+
+                writeSegment(text, position, eventPosition);
+                position = eventPosition;
+
+                for (; i < events.length && (int) (events[i] >>> 32) == eventPosition; i++) {
+                    int event = (int) events[i];
+                    int flag = FLAGS.indexOf(event >>> 1);
+                    if (flag != WhatsappMarkup.INVALID_INDEX) {
+                        mActive[flag] += (event & 1) == 1 ? 1 : -1;
+                    }
+                }
+            }
+
+            writeSegment(text, position, text.length());
+            mWriter.flush();
+        }
+
+        /**
+         * Writes the text between start and end, within the tags of the active flags.
+         */
+        private void writeSegment(String text, int start, int end) throws IOException {
+
+            if (start == end) {
+                return;
+            }
+
+            for (int i = 0; i < mActive.length; i++) {
+                if (mActive[i] > 0) {
+                    mWriter.write(OPEN_TAGS[i]);
+                }
+            }
+            writeEscaped(text, start, end);
+            for (int i = mActive.length - 1; i >= 0; i--) {
+                if (mActive[i] > 0) {
+                    mWriter.write(CLOSE_TAGS[i]);
+                }
+            }
+        }
+
+        private void writeEscaped(String text, int start, int end) throws IOException {
+            for (int i = start; i < end; i++) {
+                char c = text.charAt(i);
+                switch (c) {
+                    case '&':
+                        mWriter.write("&amp;");
+                        break;
+                    case '<':
+                        mWriter.write("&lt;");
+                        break;
+                    case '>':
+                        mWriter.write("&gt;");
+                        break;
+                    case '"':
+                        mWriter.write("&quot;");
+                        break;
+                    case NEW_LINE:
+                        mWriter.write("<br>\n");
+                        break;
+                    default:
+                        mWriter.write(c);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the formatted text as plain text, and its spans as "start end flag" lines in offsets of the whole
+     * plain text output.
+     */
+    public static class TextSink implements Sink {
+
+        private final Writer mTextWriter;
+        private final Writer mSpanWriter;
+        private long mOffset;
+
+        public TextSink(Writer textWriter, Writer spanWriter) {
+            mTextWriter = textWriter;
+            mSpanWriter = spanWriter;
+        }
+
+        @Override
+        public void write(WhatsappParseResult chunk) throws IOException {
+
+            mTextWriter.write(chunk.getText());
+
+            for (int i = 0; i < chunk.getSpanCount(); i++) {
+                mSpanWriter.write(Long.toString(mOffset + chunk.getSpanStart(i)));
+                mSpanWriter.write(' ');
+                mSpanWriter.write(Long.toString(mOffset + chunk.getSpanEnd(i)));
+                mSpanWriter.write(' ');
+                mSpanWriter.write(chunk.getSpanType(i));
+                mSpanWriter.write(NEW_LINE);
+            }
+
+            mOffset += chunk.getText().length();
+            mTextWriter.flush();
+            mSpanWriter.flush();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Texts and span helpers shared by the tests.
+ */
+final class TestTexts {
+
+    static final String DEFAULT_ALPHABET = "*~_ab\n ";
+
+    /**
+     * Alphabet of {@link #MULTI_RULES}, with flags of one and several characters sharing a first character.
+     */
+    static final String MULTI_ALPHABET = "a*_`\n";
+
+    static final WhatsappRules MULTI_RULES = new WhatsappRules(WhatsappRule.BOLD, WhatsappRule.STRIKE,
+            WhatsappRule.ITALIC, WhatsappRule.MONOSPACE, new WhatsappRule("**", 'B'));
+
+    private TestTexts() {
+    }
+
+    static String random(Random random, String alphabet, int maxLength) {
+        int length = random.nextInt(maxLength);
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return builder.toString();
+    }
+
+    static String repeat(String unit, int count) {
+        StringBuilder builder = new StringBuilder(unit.length() * count);
+        for (int i = 0; i < count; i++) {
+            builder.append(unit);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return spans as sorted "start,end,type" strings, to compare span lists regardless of their order.
+     */
+    static List<String> spans(WhatsappSpanList spans) {
+        List<String> list = new ArrayList<>();
+        for (int i = 0; i < spans.getSpanCount(); i++) {
+            list.add(spans.getSpanStart(i) + "," + spans.getSpanEnd(i) + "," + spans.getSpanType(i));
+        }
+        Collections.sort(list);
+        return list;
+    }
+
+    /**
+     * @return for each of the first length characters, the sorted types of the spans covering it.
+     */
+    static List<String> styles(WhatsappSpanList spans, int length) {
+        List<String> styles = new ArrayList<>();
+        for (int i = 0; i < length; i++) {
+            List<Character> types = new ArrayList<>();
+            for (int k = 0; k < spans.getSpanCount(); k++) {
+                char type = spans.getSpanType(k);
+                if (spans.getSpanStart(k) <= i && i < spans.getSpanEnd(k) && !types.contains(type)) {
+                    types.add(type);
+                }
+            }
+            Collections.sort(types);
+            styles.add(types.toString());
+        }
+        return styles;
+    }
+
+    /**
+     * @return formatted text offset of each raw character, -1 for the stripped flag characters. Found from a
+     * parse keeping the flags, independently of {@link WhatsappOffsetMap}.
+     */
+    static int[] displayOffsets(String raw, WhatsappRules rules) {
+
+        WhatsappParser parser = new WhatsappParser();
+        parser.parse(raw, true, rules);
+
+        boolean[] stripped = new boolean[raw.length()];
+        for (int i = 0; i < parser.getSpanCount(); i++) {
+            int flagLength = parser.getSpanFlagLength(i);
+            for (int k = 0; k < flagLength; k++) {
+                stripped[parser.getSpanStart(i) - flagLength + k] = true;
+                stripped[parser.getSpanEnd(i) + k] = true;
+            }
+        }
+
+        int[] offsets = new int[raw.length()];
+        for (int i = 0, display = 0; i < raw.length(); i++) {
+            offsets[i] = stripped[i] ? -1 : display++;
+        }
+        return offsets;
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WhatsappBatchTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Test
+    public void formatsInInputOrder() throws Exception {
+
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            texts.add("*b" + i + "* _i_ x");
+        }
+
+        List<WhatsappParseResult> results = WhatsappBatch.format(texts).get();
+
+        assertEquals(texts.size(), results.size());
+        for (int i = 0; i < texts.size(); i++) {
+            assertEquals("b" + i + " i x", results.get(i).getText());
+            assertEquals(2, results.get(i).getSpanCount());
+        }
+    }
+
+    @Test
+    public void formatsWithTheGivenRules() throws Exception {
+
+        WhatsappRules rules = new WhatsappRules(WhatsappRule.BOLD, WhatsappRule.MONOSPACE);
+        List<WhatsappParseResult> results = WhatsappBatch.format(Arrays.asList("```code``` _a_", "*b*"), false,
+                DIRECT, rules).get();
+
+        assertEquals("code _a_", results.get(0).getText());
+        assertEquals(1, results.get(0).getSpanCount());
+        assertEquals('`', results.get(0).getSpanType(0));
+        assertEquals("b", results.get(1).getText());
+    }
+
+    @Test
+    public void cancelledBatchThrows() throws Exception {
+
+        final List<Runnable> chunks = new ArrayList<>();
+        WhatsappBatch batch = WhatsappBatch.format(Arrays.asList("*a*", "*b*"), false, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                chunks.add(command);
+            }
+        });
+
+        batch.cancel();
+        for (Runnable chunk : chunks) {
+            chunk.run();
+        }
+
+        assertTrue(batch.isCancelled());
+        try {
+            batch.get();
+            throw new AssertionError("expected a CancellationException");
+        } catch (CancellationException expected) {
+            // cancelled before the chunks ran
+        }
+    }
+
+    @Test
+    public void failedChunkThrowsFromGet() throws Exception {
+
+        // no rules: the parse of the chunk throws
+        WhatsappBatch batch = WhatsappBatch.format(Arrays.asList("*a*", "*b*"), false, DIRECT, null);
+
+        assertTrue(batch.isDone());
+        try {
+            batch.get();
+            throw new AssertionError("expected an ExecutionException");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof NullPointerException);
+        }
+    }
+
+    @Test
+    public void rejectedChunkThrowsFromGet() throws Exception {
+
+        final RejectedExecutionException rejection = new RejectedExecutionException();
+        final List<Runnable> chunks = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            texts.add("*a*");
+        }
+
+        // accepts the first chunk only
+        WhatsappBatch batch = WhatsappBatch.format(texts, false, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (!chunks.isEmpty()) {
+                    throw rejection;
+                }
+                chunks.add(command);
+            }
+        });
+
+        chunks.get(0).run();
+
+        assertTrue(batch.isDone());
+        try {
+            batch.get(10, TimeUnit.SECONDS);
+            throw new AssertionError("expected an ExecutionException");
+        } catch (ExecutionException expected) {
+            assertSame(rejection, expected.getCause());
+        }
+    }
+}
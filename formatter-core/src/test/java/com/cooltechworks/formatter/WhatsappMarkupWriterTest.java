@@ -0,0 +1,68 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class WhatsappMarkupWriterTest {
+
+    @Test
+    public void writesSpansAsFlags() {
+
+        WhatsappParser parser = new WhatsappParser();
+        parser.parse("*bold* _italic_ ~strike~", false);
+
+        assertEquals("*bold* _italic_ ~strike~", WhatsappMarkupWriter.toMarkup(parser.getText(), parser));
+    }
+
+    @Test
+    public void markupParsesBackToTheSameStyles() {
+        assertRoundTrip(TestTexts.DEFAULT_ALPHABET, WhatsappRules.DEFAULT, "[*_~]");
+        assertRoundTrip(TestTexts.MULTI_ALPHABET, TestTexts.MULTI_RULES, "[*_`]");
+    }
+
+    /**
+     * Formatted texts showing flag characters are skipped, their markup being ambiguous.
+     */
+    private static void assertRoundTrip(String alphabet, WhatsappRules rules, String flagChars) {
+
+        Random random = new Random(1);
+
+        for (int n = 0; n < 50000; n++) {
+            String raw = TestTexts.random(random, alphabet, 20);
+
+            WhatsappParser parser = new WhatsappParser();
+            parser.parse(raw, false, rules);
+            WhatsappParseResult result = parser.getResult();
+            if (result.getText().matches("(?s).*" + flagChars + ".*")) {
+                continue;
+            }
+
+            String markup = WhatsappMarkupWriter.toMarkup(result.getText(), result, rules);
+            parser.parse(markup, false, rules);
+
+            assertEquals(raw + " -> " + markup, result.getText(), parser.getText().toString());
+            assertEquals(raw + " -> " + markup, TestTexts.styles(result, result.getText().length()),
+                    TestTexts.styles(parser, result.getText().length()));
+        }
+    }
+}
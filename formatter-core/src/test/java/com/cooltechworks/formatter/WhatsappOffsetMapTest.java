@@ -0,0 +1,87 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class WhatsappOffsetMapTest {
+
+    @Test
+    public void mapsShownCharactersBothWays() {
+        assertMapsShownCharacters(TestTexts.DEFAULT_ALPHABET, WhatsappRules.DEFAULT);
+        assertMapsShownCharacters(TestTexts.MULTI_ALPHABET, TestTexts.MULTI_RULES);
+    }
+
+    @Test
+    public void mapsFlagOffsetsToTheirRemovalOffset() {
+
+        WhatsappParser parser = new WhatsappParser();
+        parser.parse("a *b* c", false);
+        WhatsappOffsetMap map = parser.getResult().getOffsetMap();
+
+        // "a b c": the opening flag at 2 is removed at 2, the closing one at 4 at 3
+        assertEquals(2, map.toDisplayOffset(2));
+        assertEquals(2, map.toDisplayOffset(3));
+        assertEquals(3, map.toDisplayOffset(4));
+        assertEquals(3, map.toDisplayOffset(5));
+        assertEquals(3, map.toRawOffset(2));
+        assertEquals(5, map.toRawOffset(3));
+        assertEquals(2, map.getRemovedCount());
+    }
+
+    @Test
+    public void isIdentityWhenFlagsAreKept() {
+
+        WhatsappParser parser = new WhatsappParser();
+        parser.parse("*a* _b_", true);
+        WhatsappOffsetMap map = parser.getResult().getOffsetMap();
+
+        for (int i = 0; i <= 7; i++) {
+            assertEquals(i, map.toDisplayOffset(i));
+            assertEquals(i, map.toRawOffset(i));
+        }
+        assertEquals(0, map.getRemovedCount());
+    }
+
+    private static void assertMapsShownCharacters(String alphabet, WhatsappRules rules) {
+
+        Random random = new Random(1);
+
+        for (int n = 0; n < 50000; n++) {
+            String raw = TestTexts.random(random, alphabet, 30);
+
+            WhatsappParser parser = new WhatsappParser();
+            parser.parse(raw, false, rules);
+            WhatsappParseResult result = parser.getResult();
+            WhatsappOffsetMap map = result.getOffsetMap();
+            int[] offsets = TestTexts.displayOffsets(raw, rules);
+
+            for (int i = 0; i < raw.length(); i++) {
+                if (offsets[i] != -1) {
+                    assertEquals(raw, offsets[i], map.toDisplayOffset(i));
+                    assertEquals(raw, i, map.toRawOffset(offsets[i]));
+                }
+            }
+            assertEquals(raw, raw.length() - result.getText().length(), map.getRemovedCount());
+        }
+    }
+}
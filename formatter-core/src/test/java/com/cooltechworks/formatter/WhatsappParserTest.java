@@ -0,0 +1,285 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static com.cooltechworks.formatter.WhatsappMarkup.BOLD_FLAG;
+import static com.cooltechworks.formatter.WhatsappMarkup.INVALID_INDEX;
+import static com.cooltechworks.formatter.WhatsappMarkup.ITALIC_FLAG;
+import static com.cooltechworks.formatter.WhatsappMarkup.STRIKE_FLAG;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WhatsappParserTest {
+
+    private static final char[] FLAGS = {BOLD_FLAG, STRIKE_FLAG, ITALIC_FLAG};
+
+    @Test
+    public void stripsPairedFlags() {
+        assertEquals("bold italic strike|0,4,*;5,11,_;12,18,~;", parse("*bold* _italic_ ~strike~", false));
+        assertEquals("*a*|1,2,*;", parse("*a*", true));
+    }
+
+    @Test
+    public void keepsUnpairedAndEmptyFlags() {
+        assertEquals("** a|", parse("** a", false));
+        assertEquals("* a|1,2,*;", parse("** *a", false));
+        assertEquals("*a\nb*|", parse("*a\nb*", false));
+    }
+
+    @Test
+    public void matchesBaselineOnRandomTexts() {
+
+        Random random = new Random(1);
+        String alphabet = TestTexts.DEFAULT_ALPHABET;
+
+        for (int n = 0; n < 50000; n++) {
+            String text = TestTexts.random(random, alphabet, 30);
+            assertEquals(text, baseline(text, false), parse(text, false));
+            assertEquals(text, baseline(text, true), parse(text, true));
+        }
+    }
+
+    @Test
+    public void matchesBaselineOnAdversarialTexts() {
+        String[] texts = {TestTexts.repeat("*a", 2000), TestTexts.repeat("*", 4001), TestTexts.repeat("_", 4001),
+                TestTexts.repeat("*_~", 2000)};
+
+        for (String text : texts) {
+            assertEquals(baseline(text, false), parse(text, false));
+            assertEquals(baseline(text, true), parse(text, true));
+        }
+    }
+
+    @Test
+    public void parsesLinesIndependently() {
+
+        Random random = new Random(2);
+
+        for (int n = 0; n < 20000; n++) {
+            String text = TestTexts.random(random, TestTexts.MULTI_ALPHABET, 30);
+
+            WhatsappParser parser = new WhatsappParser();
+            parser.parse(text, true, TestTexts.MULTI_RULES);
+            List<String> expected = TestTexts.spans(parser);
+
+            // region parses keep the text offsets when the flags are kept
+            List<String> lines = new ArrayList<>();
+            for (int start = 0, end; start <= text.length(); start = end + 1) {
+                end = text.indexOf(WhatsappMarkup.NEW_LINE, start);
+                if (end == INVALID_INDEX) {
+                    end = text.length();
+                }
+                parser.parse(text, start, end, true, TestTexts.MULTI_RULES);
+                lines.addAll(TestTexts.spans(parser));
+            }
+            Collections.sort(lines);
+
+            assertEquals(text, expected, lines);
+        }
+    }
+
+    @Test
+    public void returnsTheInputWithoutFlags() {
+
+        WhatsappParser parser = new WhatsappParser();
+        String text = "no flags here\nat all";
+        parser.parse(text, false);
+
+        assertSame(text, parser.getText());
+        assertEquals(0, parser.getSpanCount());
+    }
+
+    @Test
+    public void parseTimeGrowsLinearly() {
+        assertLinear("*a");
+        assertLinear("*");
+        assertLinear("_ ");
+    }
+
+    @Test
+    public void parseDoesNotAllocateOnceWarm() {
+
+        final WhatsappParser parser = new WhatsappParser();
+        final String text = TestTexts.repeat("*bold* _italic_ ~strike~ plain ", 100);
+
+        assertEquals(0, allocatedBytesPerCall(new Runnable() {
+            @Override
+            public void run() {
+                parser.parse(text, true);
+            }
+        }));
+        assertEquals(0, allocatedBytesPerCall(new Runnable() {
+            @Override
+            public void run() {
+                parser.parse(text, false);
+            }
+        }));
+    }
+
+    @Test
+    public void getTextAllocatesOnlyTheStrippedString() {
+
+        final WhatsappParser parser = new WhatsappParser();
+        final String flagged = TestTexts.repeat("*bold* plain ", 100);
+        final String plain = TestTexts.repeat("plain text ", 100);
+
+        // the stripped text, at most two bytes per char plus the String and array headers
+        long stripped = allocatedBytesPerCall(new Runnable() {
+            @Override
+            public void run() {
+                parser.parse(flagged, false);
+                parser.getText();
+            }
+        });
+        assertTrue(stripped + " bytes", stripped <= flagged.length() * 2 + 64);
+
+        assertEquals(0, allocatedBytesPerCall(new Runnable() {
+            @Override
+            public void run() {
+                parser.parse(plain, false);
+                parser.getText();
+            }
+        }));
+    }
+
+    /**
+     * @return bytes allocated by the calling thread per run of the task, once warm.
+     */
+    private static long allocatedBytesPerCall(Runnable task) {
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        int runs = 10000;
+        for (int i = 0; i < runs; i++) {
+            task.run();
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < runs; i++) {
+            task.run();
+        }
+        return (threads.getThreadAllocatedBytes(threadId) - before) / runs;
+    }
+
+    /**
+     * Parses the unit repeated n and 8n times. A linear parser takes about 8 times longer on the larger text,
+     * a quadratic one 64 times.
+     */
+    private static void assertLinear(String unit) {
+
+        int n = 100000 / unit.length();
+        String small = TestTexts.repeat(unit, n);
+        String large = TestTexts.repeat(unit, n * 8);
+
+        // warm up the JIT before timing
+        for (int i = 0; i < 20; i++) {
+            time(small);
+        }
+
+        long smallTime = Long.MAX_VALUE, largeTime = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            smallTime = Math.min(smallTime, time(small));
+            largeTime = Math.min(largeTime, time(large));
+        }
+
+        double ratio = (double) largeTime / smallTime;
+        assertTrue("\"" + unit + "\" ratio " + ratio, ratio < 24);
+    }
+
+    private static long time(String text) {
+        WhatsappParser parser = new WhatsappParser();
+        long start = System.nanoTime();
+        parser.parse(text, false);
+        parser.parse(text, true);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return text and spans of the parse, as "text|start,end,flag;..." in parser order.
+     */
+    private static String parse(String text, boolean keepFlags) {
+
+        WhatsappParser parser = new WhatsappParser();
+        parser.parse(text, keepFlags);
+
+        StringBuilder builder = new StringBuilder(parser.getText()).append('|');
+        for (int i = 0; i < parser.getSpanCount(); i++) {
+            builder.append(parser.getSpanStart(i)).append(',').append(parser.getSpanEnd(i)).append(',')
+                    .append(parser.getSpanType(i)).append(';');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Flag extraction of extractFlagsForTextView and extractFlagsForEditText before the parser, rescanning the line
+     * for every opening flag. Same output format as {@link #parse(String, boolean)}.
+     */
+    private static String baseline(String text, boolean keepFlags) {
+
+        StringBuilder formatted = new StringBuilder();
+        List<int[]> spans = new ArrayList<>();
+        int[] starts = {INVALID_INDEX, INVALID_INDEX, INVALID_INDEX};
+
+        for (int i = 0, j = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            boolean skip = false;
+
+            for (int f = 0; f < FLAGS.length; f++) {
+                if (c != FLAGS[f]) {
+                    continue;
+                }
+                if (starts[f] == INVALID_INDEX) {
+                    if (WhatsappMarkup.hasFlagSameLine(text, c, i + 1)) {
+                        starts[f] = keepFlags ? j + 1 : j;
+                        skip = !keepFlags;
+                    }
+                } else {
+                    spans.add(new int[]{starts[f], j, c});
+                    starts[f] = INVALID_INDEX;
+                    skip = !keepFlags;
+                }
+            }
+
+            if (!skip) {
+                formatted.append(c);
+                j++;
+            }
+        }
+
+        formatted.append('|');
+        for (int[] span : spans) {
+            formatted.append(span[0]).append(',').append(span[1]).append(',').append((char) span[2]).append(';');
+        }
+        return formatted.toString();
+    }
+}
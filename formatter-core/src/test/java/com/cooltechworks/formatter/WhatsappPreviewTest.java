@@ -0,0 +1,160 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WhatsappPreviewTest {
+
+    @Test
+    public void matchesTheFullTextCutToThePrefix() {
+        assertMatchesFullText(TestTexts.DEFAULT_ALPHABET, WhatsappRules.DEFAULT);
+        assertMatchesFullText(TestTexts.MULTI_ALPHABET, TestTexts.MULTI_RULES);
+    }
+
+    @Test
+    public void cutsAtTheLineLimit() {
+
+        WhatsappPreview preview = WhatsappPreview.parse("*a*\n_b_\nc", WhatsappPreview.NO_LIMIT, 2);
+
+        assertEquals("a\nb", preview.getResult().getText());
+        assertEquals(2, preview.getResult().getSpanCount());
+        assertEquals(7, preview.getPrefixEnd());
+        assertTrue(preview.isTruncated());
+    }
+
+    @Test
+    public void keepsTheClosingFlagInThePrefix() {
+
+        WhatsappPreview preview = WhatsappPreview.parse("*ab* c", 2, WhatsappPreview.NO_LIMIT);
+
+        assertEquals("ab", preview.getResult().getText());
+        assertEquals(4, preview.getPrefixEnd());
+        assertTrue(preview.isTruncated());
+        assertFalse(WhatsappPreview.parse("*ab*", 2, WhatsappPreview.NO_LIMIT).isTruncated());
+    }
+
+    @Test
+    public void readsAtMostTheLookAheadAfterTheCut() {
+
+        int maxLength = 10;
+        int limit = maxLength + 1 + WhatsappPreview.MAX_LOOK_AHEAD;
+
+        // a flag closed after the look-ahead is shown as written
+        String open = "*" + TestTexts.repeat("a", 10 * WhatsappPreview.MAX_LOOK_AHEAD) + "*";
+        WhatsappParseResult preview = WhatsappPreview.parse(new BoundedText(open, limit), maxLength,
+                WhatsappPreview.NO_LIMIT).getResult();
+        assertEquals("*aaaaaaaaa", preview.getText());
+        assertEquals(0, preview.getSpanCount());
+
+        // and pairs within it
+        String closed = "*" + TestTexts.repeat("a", WhatsappPreview.MAX_LOOK_AHEAD) + "*"
+                + TestTexts.repeat("b", 10 * WhatsappPreview.MAX_LOOK_AHEAD);
+        preview = WhatsappPreview.parse(new BoundedText(closed, limit), maxLength,
+                WhatsappPreview.NO_LIMIT).getResult();
+        assertEquals("aaaaaaaaaa", preview.getText());
+        assertEquals(1, preview.getSpanCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeLimits() {
+        WhatsappPreview.parse("a", -1, WhatsappPreview.NO_LIMIT);
+    }
+
+    private static void assertMatchesFullText(String alphabet, WhatsappRules rules) {
+
+        Random random = new Random(1);
+
+        for (int n = 0; n < 50000; n++) {
+            String raw = TestTexts.random(random, alphabet, 20);
+            int maxLength = random.nextBoolean() ? WhatsappPreview.NO_LIMIT : random.nextInt(12);
+            int maxLines = random.nextBoolean() ? WhatsappPreview.NO_LIMIT : random.nextInt(4);
+
+            WhatsappParser parser = new WhatsappParser();
+            parser.parse(raw, false, rules);
+            WhatsappParseResult full = parser.getResult();
+            WhatsappParseResult preview = WhatsappPreview.parse(raw, maxLength, maxLines, rules).getResult();
+
+            String expected = full.getText().substring(0, prefixLength(full.getText(), maxLength, maxLines));
+            String message = raw + " " + maxLength + " " + maxLines;
+
+            assertEquals(message, expected, preview.getText());
+            assertEquals(message, TestTexts.styles(full, expected.length()),
+                    TestTexts.styles(preview, expected.length()));
+        }
+    }
+
+    /**
+     * @return length of the formatted text shown within the limits.
+     */
+    private static int prefixLength(String formatted, int maxLength, int maxLines) {
+
+        int length = Math.min(maxLength, formatted.length());
+        if (maxLines == 0) {
+            return 0;
+        }
+
+        for (int i = 0, lines = 0; i < length && maxLines != WhatsappPreview.NO_LIMIT; i++) {
+            if (formatted.charAt(i) == WhatsappMarkup.NEW_LINE && ++lines == maxLines) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Text failing on reads past a limit.
+     */
+    private static final class BoundedText implements CharSequence {
+
+        private final String mText;
+        private final int mLimit;
+
+        BoundedText(String text, int limit) {
+            mText = text;
+            mLimit = limit;
+        }
+
+        @Override
+        public int length() {
+            return mText.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            assertTrue("read at " + index, index < mLimit);
+            return mText.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String toString() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
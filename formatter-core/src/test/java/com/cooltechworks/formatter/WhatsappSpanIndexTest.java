@@ -0,0 +1,142 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WhatsappSpanIndexTest {
+
+    @Test
+    public void decodeMatchesParse() {
+        assertDecodeMatchesParse(TestTexts.DEFAULT_ALPHABET, WhatsappRules.DEFAULT);
+        assertDecodeMatchesParse(TestTexts.MULTI_ALPHABET, TestTexts.MULTI_RULES);
+    }
+
+    @Test
+    public void decodeOffsetMapMatchesResult() {
+
+        Random random = new Random(2);
+
+        for (int n = 0; n < 20000; n++) {
+            String text = TestTexts.random(random, TestTexts.DEFAULT_ALPHABET, 40);
+            byte[] index = WhatsappSpanIndex.encode(text);
+
+            WhatsappParser parser = new WhatsappParser();
+            parser.parse(text, false);
+            WhatsappParseResult result = parser.getResult();
+            WhatsappOffsetMap expected = result.getOffsetMap();
+            WhatsappOffsetMap decoded = WhatsappSpanIndex.decodeOffsetMap(index);
+
+            for (int raw = 0; raw <= text.length(); raw++) {
+                assertEquals(text, expected.toDisplayOffset(raw), decoded.toDisplayOffset(raw));
+            }
+            for (int display = 0; display <= result.getText().length(); display++) {
+                assertEquals(text, expected.toRawOffset(display), decoded.toRawOffset(display));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decodeRejectsAnotherText() {
+        WhatsappSpanIndex.decode(WhatsappSpanIndex.encode("*a*"), "*ab*", false);
+    }
+
+    @Test
+    public void decodeRejectsTamperedIndexes() {
+
+        String text = "*bold* _italic_ and ```code```";
+        byte[] index = WhatsappSpanIndex.encode(text, TestTexts.MULTI_RULES);
+
+        // same text length, flags moved
+        assertRejected(index, "a*bold*_italic_ and ```code```");
+        assertRejected(index, "*bold* _italic_ and ``code````");
+
+        // every byte after the version and length changed, through each of its values
+        for (int i = 2; i < index.length; i++) {
+            for (int value = 0; value < 256; value++) {
+                byte[] tampered = index.clone();
+                tampered[i] = (byte) value;
+                if (tampered[i] == index[i]) {
+                    continue;
+                }
+                try {
+                    WhatsappSpanIndex.decode(tampered, text, false, TestTexts.MULTI_RULES);
+                    // a change the checks cannot see still yields spans between flags of the text
+                    assertFlagged(text, WhatsappSpanIndex.decode(tampered, text, true, TestTexts.MULTI_RULES));
+                } catch (IllegalArgumentException expected) {
+                    // rejected
+                }
+            }
+        }
+    }
+
+    private static void assertRejected(byte[] index, String text) {
+        for (boolean keepFlags : new boolean[]{false, true}) {
+            try {
+                WhatsappSpanIndex.decode(index, text, keepFlags, TestTexts.MULTI_RULES);
+                fail(text);
+            } catch (IllegalArgumentException expected) {
+                // rejected
+            }
+        }
+    }
+
+    /**
+     * Checks that every span of the result lies between flags of its rule in the text.
+     */
+    private static void assertFlagged(String text, WhatsappParseResult result) {
+
+        for (int i = 0; i < result.getSpanCount(); i++) {
+            int start = result.getSpanStart(i);
+            int end = result.getSpanEnd(i);
+            String flag = null;
+            for (int rule = 0; rule < TestTexts.MULTI_RULES.getRuleCount(); rule++) {
+                if (TestTexts.MULTI_RULES.getRule(rule).getType() == result.getSpanType(i)) {
+                    flag = TestTexts.MULTI_RULES.getRule(rule).getFlag();
+                }
+            }
+            assertTrue(text, flag != null && text.startsWith(flag, start - flag.length())
+                    && text.startsWith(flag, end));
+        }
+    }
+
+    private static void assertDecodeMatchesParse(String alphabet, WhatsappRules rules) {
+
+        Random random = new Random(1);
+
+        for (int n = 0; n < 20000; n++) {
+            String text = TestTexts.random(random, alphabet, 40);
+            byte[] index = WhatsappSpanIndex.encode(text, rules);
+
+            for (boolean keepFlags : new boolean[]{false, true}) {
+                WhatsappParser parser = new WhatsappParser();
+                parser.parse(text, keepFlags, rules);
+                WhatsappParseResult decoded = WhatsappSpanIndex.decode(index, text, keepFlags, rules);
+
+                assertEquals(text, parser.getText().toString(), decoded.getText());
+                assertEquals(text, TestTexts.spans(parser), TestTexts.spans(decoded));
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.formatter;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class WhatsappStreamFormatterTest {
+
+    @Test
+    public void writesReaderChunksInInputOrder() throws IOException {
+
+        StringWriter text = new StringWriter();
+        StringWriter spans = new StringWriter();
+        new WhatsappStreamFormatter(4, 2).format(new StringReader("a\nb\n*c*\nd"),
+                new WhatsappStreamFormatter.TextSink(text, spans));
+
+        assertEquals("a\nb\nc\nd", text.toString());
+        assertEquals("4 5 *\n", spans.toString());
+    }
+
+    @Test
+    public void readerAndFileGiveTheSameOutput() throws IOException {
+
+        Random random = new Random(1);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            builder.append(TestTexts.random(random, "*~_ab ", 40)).append(WhatsappMarkup.NEW_LINE);
+        }
+        builder.append("*tail* without a line break");
+        String input = builder.toString();
+
+        WhatsappParser parser = new WhatsappParser();
+        parser.parse(input, false);
+        String expected = parser.getText().toString();
+
+        File file = File.createTempFile("chat", ".txt");
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                writer.write(input);
+            } finally {
+                writer.close();
+            }
+
+            for (int chunkSize : new int[]{7, 64, 4096}) {
+                WhatsappStreamFormatter formatter = new WhatsappStreamFormatter(chunkSize, 4);
+
+                StringWriter readerText = new StringWriter(), readerSpans = new StringWriter();
+                formatter.format(new StringReader(input), new WhatsappStreamFormatter.TextSink(readerText, readerSpans));
+
+                StringWriter fileText = new StringWriter(), fileSpans = new StringWriter();
+                formatter.format(file, new WhatsappStreamFormatter.TextSink(fileText, fileSpans));
+
+                assertEquals(expected, readerText.toString());
+                assertEquals(expected, fileText.toString());
+                assertEquals(fileSpans.toString(), readerSpans.toString());
+
+                StringWriter readerHtml = new StringWriter(), fileHtml = new StringWriter();
+                formatter.format(new StringReader(input), new WhatsappStreamFormatter.HtmlSink(readerHtml));
+                formatter.format(file, new WhatsappStreamFormatter.HtmlSink(fileHtml));
+
+                assertEquals(fileHtml.toString(), readerHtml.toString());
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void writesHtml() throws IOException {
+
+        StringWriter html = new StringWriter();
+        new WhatsappStreamFormatter().format(new StringReader("*a _b_* <x>\n~c~"),
+                new WhatsappStreamFormatter.HtmlSink(html));
+
+        assertEquals("<b>a </b><b><i>b</i></b> &lt;x&gt;<br>\n<s>c</s>", html.toString());
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.views;
+
+import android.widget.TextView;
+
+/**
+ * Listener of the formatting work, installed with {@link WhatsappViewCompat#setFormatterMetrics(FormatterMetrics)}.
+ * Called on the main thread.
+ */
+public interface FormatterMetrics {
+
+    /**
+     * Called after a format pass of a view.
+     * @param view - formatted view.
+     * @param length - length of the parsed text, or of the parsed lines for an EditText.
+     * @param spanCount - number of spans found.
+     * @param parseNanos - parse duration, in nanoseconds.
+     * @param formatCount - number of format passes of the view so far, this one included.
+     */
+    void onFormat(TextView view, int length, int spanCount, long parseNanos, int formatCount);
+
+    /**
+     * Called when a pending format pass of a view is replaced by a later one while the user types.
+     * @param view - formatted view.
+     */
+    void onFormatCancelled(TextView view);
+
+    /**
+     * Called when a text is found in the format cache instead of being parsed.
+     * @param view - formatted view.
+     * @param length - length of the text.
+     */
+    void onCacheHit(TextView view, int length);
+}
@@ -36,6 +36,26 @@ public class WhatsAppEditText extends EditText {
      */
     private ArrayList<TextWatcher> mListeners;
 
+    /**
+     * Formatter re-spanning the lines changed by the user.
+     */
+    private final WhatsappEditFormatter mFormatter = new WhatsappEditFormatter(this, new WhatsappEditFormatter.Callback() {
+        @Override
+        public void onFormatted(Editable text) {
+            sendAfterTextChanged(text);
+        }
+    });
+
+    /**
+     * Single format task of this view, coalesced by the shared scheduler.
+     */
+    private final WhatsappFormatScheduler.Task mFormatTask = new WhatsappFormatScheduler.Task(this) {
+        @Override
+        boolean format() {
+            return WhatsAppEditText.this.format();
+        }
+    };
+
     /*
      * Constructor
      */
@@ -82,42 +102,44 @@ public class WhatsAppEditText extends EditText {
     private TextWatcher mEditTextWatcher = new TextWatcher() {
         @Override
         public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            mFormatter.beforeTextChanged(s, start, count);
             sendBeforeTextChanged(s, start, count, after);
         }
 
         @Override
         public void onTextChanged(CharSequence s, int start, int before, int count) {
+            mFormatter.onTextChanged(s, start, before, count);
+            mFormatTask.onTextChanged(s, start, count);
             sendOnTextChanged(s, start, before, count);
         }
 
         @Override
         public void afterTextChanged(Editable s) {
-
-            postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    format();
-                }
-            }, 10);
-
+            WhatsappFormatScheduler.getInstance().schedule(mFormatTask);
         }
     };
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (mFormatter.isDirty()) {
+            WhatsappFormatScheduler.getInstance().scheduleNextFrame(mFormatTask);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        // changes made meanwhile are formatted once attached again
+        WhatsappFormatScheduler.getInstance().cancel(mFormatTask);
+        super.onDetachedFromWindow();
+    }
+
     /**
-     * Performs formatting.
+     * Performs formatting of the changed lines, on the live text.
+     * @return true if the pass goes on in the next frame.
      */
-    private void format() {
-
-        Editable text = getText();
-        CharSequence formatted = WhatsappViewCompat.extractFlagsForEditText(text);
-        removeTextChangedListener(mEditTextWatcher);
-        int selectionEnd = getSelectionEnd();
-        int selectionStart = getSelectionStart();
-        setText(formatted);
-        setSelection(selectionStart, selectionEnd);
-        Editable formattedEditableText = getText();
-        sendAfterTextChanged(formattedEditableText);
-        addTextChangedListener(mEditTextWatcher);
+    private boolean format() {
+        return mFormatter.format(getText());
     }
 
     /**
@@ -19,12 +19,23 @@
 package com.cooltechworks.views;
 
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
 import android.text.Editable;
+import android.text.Layout;
+import android.text.TextPaint;
 import android.text.TextWatcher;
 import android.util.AttributeSet;
+import android.view.Gravity;
 import android.widget.TextView;
 
+import com.cooltechworks.formatter.WhatsappParseResult;
+import com.cooltechworks.formatter.WhatsappSpanIndex;
+
 import java.util.ArrayList;
 
 /**
@@ -43,7 +54,7 @@ public class WhatsAppTextView extends TextView {
      */
     public WhatsAppTextView(Context context) {
         super(context);
-        init();
+        init(context, null, android.R.attr.textViewStyle, 0);
     }
 
     /*
@@ -51,7 +62,7 @@ public class WhatsAppTextView extends TextView {
      */
     public WhatsAppTextView(Context context, AttributeSet attrs) {
         super(context, attrs);
-        init();
+        init(context, attrs, android.R.attr.textViewStyle, 0);
     }
 
     /*
@@ -59,7 +70,7 @@ public class WhatsAppTextView extends TextView {
      */
     public WhatsAppTextView(Context context, AttributeSet attrs, int defStyleAttr) {
         super(context, attrs, defStyleAttr);
-        init();
+        init(context, attrs, defStyleAttr, 0);
     }
 
     /*
@@ -68,16 +79,35 @@ public class WhatsAppTextView extends TextView {
     @SuppressLint("NewApi")
     public WhatsAppTextView(Context context, AttributeSet attrs, int defStyleAttr, int defStyleRes) {
         super(context, attrs, defStyleAttr, defStyleRes);
-        init();
+        init(context, attrs, defStyleAttr, defStyleRes);
     }
 
     /**
      * Initializer method to listen for text change events.
      */
-    private void init() {
+    private void init(Context context, AttributeSet attrs, int defStyleAttr, int defStyleRes) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            readLayoutAttributes(context, attrs, defStyleAttr, defStyleRes);
+        }
         addTextChangedListener(mEditTextWatcher);
     }
 
+    /**
+     * Reads the layout attributes the TextView constructor sets without calling their setters, on the versions
+     * without getters for them.
+     */
+    private void readLayoutAttributes(Context context, AttributeSet attrs, int defStyleAttr, int defStyleRes) {
+
+        TypedArray a = context.obtainStyledAttributes(attrs, LAYOUT_ATTRS, defStyleAttr, defStyleRes);
+        try {
+            mNoFontPadding = !a.getBoolean(0, true);
+            mSpacingAdd = a.getDimensionPixelSize(1, 0);
+            mSpacingMult = a.getFloat(2, 1f);
+        } finally {
+            a.recycle();
+        }
+    }
+
     /**
      * {@link TextWatcher} listener to do the formatting.
      */
@@ -95,18 +125,293 @@ public class WhatsAppTextView extends TextView {
         @Override
         public void afterTextChanged(Editable s) {
 
-            CharSequence formatted = WhatsappViewCompat.extractFlagsForTextView(s);
+            mVersion++;
+            mTextLayout = null;
+            if (WhatsappViewCompat.isLazyFormatting()) {
+                mPreDrawTask.schedule();
+                return;
+            }
 
-            removeTextChangedListener(mEditTextWatcher);
-            setText(formatted, BufferType.EDITABLE);
-            Editable formattedEditableText = (Editable) getText();
-            sendAfterTextChanged(formattedEditableText);
-            addTextChangedListener(mEditTextWatcher);
+            format(s);
+        }
+    };
 
+    /**
+     * Formats the text before the view is drawn, in lazy mode.
+     */
+    private final WhatsappPreDrawTask mPreDrawTask = new WhatsappPreDrawTask(this) {
+        @Override
+        boolean format() {
+            return WhatsAppTextView.this.format((Editable) getText());
+        }
+    };
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mPreDrawTask.onAttached();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        mPreDrawTask.onDetached();
+        super.onDetachedFromWindow();
+    }
+
+    /**
+     * Formats the raw text shown by the view.
+     * @return true if the formatted text was set.
+     */
+    private boolean format(Editable s) {
+
+        mPreDrawTask.cancel();
+
+        CharSequence formatted = WhatsappViewCompat.formatForTextView(this, s, mFormatCount + 1, true);
+        if (formatted == null) {
+            WhatsappAsync.parse(s.toString(), false, mVersion, mAsyncCallback);
+            return false;
         }
+
+        mFormatCount++;
+        return applyFormattedText(formatted);
+    }
+
+    /**
+     * Version of the text, bumped on every change. Async results of an older version are dropped.
+     */
+    private int mVersion;
+
+    /**
+     * Number of format passes, reported to the {@link FormatterMetrics}.
+     */
+    private int mFormatCount;
+
+    /**
+     * Applies the result of an async parse if the text did not change meanwhile.
+     */
+    private final WhatsappAsync.Callback mAsyncCallback = new WhatsappAsync.Callback() {
+        @Override
+        public void onParsed(String snapshot, WhatsappParseResult result, int version, long parseNanos) {
+            if (version == mVersion) {
+                applyFormattedText(WhatsappViewCompat.formatForTextView(WhatsAppTextView.this, snapshot, result,
+                        parseNanos, ++mFormatCount));
+            }
+        }
+    };
+
+    /**
+     * Sets the text with its stored span index, so that it is formatted without being parsed.
+     * @param text - raw text, with its flags.
+     * @param spanIndex - span index of the text, from {@link WhatsappSpanIndex#encode(CharSequence)}.
+     * @throws IllegalArgumentException if the span index does not match the text.
+     */
+    public void setText(CharSequence text, byte[] spanIndex) {
+
+        mVersion++;
+        mTextLayout = null;
+        mPreDrawTask.cancel();
+        CharSequence formatted = WhatsappViewCompat.extractFlagsForTextView(text, spanIndex);
+        setFormattedText(WhatsappViewCompat.cacheForTextView(text.toString(), formatted));
+    }
+
+    /**
+     * Precomputed layout of the text, null when the text was set otherwise.
+     */
+    private WhatsappTextLayout mTextLayout;
+
+    /**
+     * True if the last measure used {@link #mTextLayout}, so it is drawn instead of the TextView layout.
+     */
+    private boolean mTextLayoutUsed;
+
+    /**
+     * Attributes read by {@link #readLayoutAttributes(Context, AttributeSet, int, int)}, sorted by id.
+     */
+    private static final int[] LAYOUT_ATTRS = {
+            android.R.attr.includeFontPadding,
+            android.R.attr.lineSpacingExtra,
+            android.R.attr.lineSpacingMultiplier
     };
 
+    /**
+     * Layout attributes not readable before API 16, read from the XML attributes by the constructor and then
+     * recorded from their setters. The TextView constructor calls some setters before the fields are initialized,
+     * so they have no initializer.
+     */
+    private float mSpacingMult;
+    private float mSpacingAdd;
+    private boolean mNoFontPadding;
+    private boolean mLineLimited;
+
+    /**
+     * Sets a text formatted and laid out off the main thread. The layout is drawn as is while the view width
+     * and style match the ones it was built for, and the view falls back to the TextView layout otherwise.
+     * Only plain layouts are drawn as is: top start gravity, no line limit, no ellipsis and no compound drawable.
+     * TextView is not measured meanwhile and may have no layout of its own, so {@link #getLayout()} may return
+     * null: use {@link WhatsappTextLayout#getLayout()} instead.
+     * @param layout - layout from {@link WhatsappTextLayout#obtain(CharSequence, WhatsappTextLayout.Style, int)}.
+     */
+    public void setText(WhatsappTextLayout layout) {
+
+        mVersion++;
+        mPreDrawTask.cancel();
+
+        setFormattedText(layout.getText());
+        mTextLayout = layout;
+        requestLayout();
+    }
+
+    /**
+     * @return current text style of the view, to precompute its layouts with.
+     */
+    public WhatsappTextLayout.Style getLayoutStyle() {
+        return new WhatsappTextLayout.Style(getPaint(), getSpacingMult(), getSpacingAdd(), includesFontPadding());
+    }
+
+    @Override
+    public void setLineSpacing(float add, float mult) {
+        mSpacingAdd = add;
+        mSpacingMult = mult;
+        super.setLineSpacing(add, mult);
+    }
+
+    @Override
+    public void setIncludeFontPadding(boolean includePad) {
+        mNoFontPadding = !includePad;
+        super.setIncludeFontPadding(includePad);
+    }
+
+    @Override
+    public void setMaxLines(int maxLines) {
+        mLineLimited = maxLines != Integer.MAX_VALUE;
+        super.setMaxLines(maxLines);
+    }
+
+    @Override
+    public void setLines(int lines) {
+        mLineLimited = true;
+        super.setLines(lines);
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+
+        mTextLayoutUsed = canUseTextLayout(widthMeasureSpec);
+        if (!mTextLayoutUsed) {
+            super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+            return;
+        }
+
+        int horizontalPadding = getPaddingLeft() + getPaddingRight();
+        int width = MeasureSpec.getMode(widthMeasureSpec) == MeasureSpec.EXACTLY
+                ? MeasureSpec.getSize(widthMeasureSpec)
+                : mTextLayout.getDesiredWidth() + horizontalPadding;
+        int height = mTextLayout.getLayout().getHeight() + getPaddingTop() + getPaddingBottom();
+
+        setMeasuredDimension(Math.max(width, getSuggestedMinimumWidth()),
+                resolveSize(Math.max(height, getSuggestedMinimumHeight()), heightMeasureSpec));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+
+        if (!mTextLayoutUsed || mTextLayout == null) {
+            super.onDraw(canvas);
+            return;
+        }
+
+        Layout layout = mTextLayout.getLayout();
+        TextPaint paint = layout.getPaint();
+        paint.setColor(getCurrentTextColor());
+        paint.drawableState = getDrawableState();
+
+        canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        layout.draw(canvas);
+        canvas.restore();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private float getSpacingMult() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return getLineSpacingMultiplier();
+        }
+        return mSpacingMult;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private float getSpacingAdd() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return getLineSpacingExtra();
+        }
+        return mSpacingAdd;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private boolean includesFontPadding() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return getIncludeFontPadding();
+        }
+        return !mNoFontPadding;
+    }
+
+    /**
+     * @return true if the precomputed layout fits the given width and the current style of the view.
+     */
+    private boolean canUseTextLayout(int widthMeasureSpec) {
+
+        if (mTextLayout == null || MeasureSpec.getMode(widthMeasureSpec) == MeasureSpec.UNSPECIFIED) {
+            return false;
+        }
+
+        int width = MeasureSpec.getSize(widthMeasureSpec) - getPaddingLeft() - getPaddingRight();
+        if (width != mTextLayout.getWidth()
+                || !mTextLayout.getStyle().matches(getPaint(), getSpacingMult(), getSpacingAdd(),
+                includesFontPadding())) {
+            return false;
+        }
+
+        if (mLineLimited || getEllipsize() != null
+                || getGravity() != (Gravity.TOP | Gravity.START)) {
+            return false;
+        }
+
+        for (Drawable drawable : getCompoundDrawables()) {
+            if (drawable != null) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Sets the formatted text without formatting it again.
+     */
+    private void setFormattedText(CharSequence formatted) {
+
+        removeTextChangedListener(mEditTextWatcher);
+        WhatsappViewCompat.setTextTraced(this, formatted);
+        Editable formattedEditableText = (Editable) getText();
+        sendAfterTextChanged(formattedEditableText);
+        addTextChangedListener(mEditTextWatcher);
+    }
+
+    /**
+     * Replaces the raw text shown by the view with its formatted text, unless it has no flag to strip.
+     * @return true if the formatted text was set.
+     */
+    private boolean applyFormattedText(CharSequence formatted) {
+
+        if (WhatsappViewCompat.isFormatted(getText(), formatted)) {
+            sendAfterTextChanged((Editable) getText());
+            return false;
+        }
+
+        setFormattedText(formatted);
+        return true;
+    }
+
     /**
      * Send an before text change event to child listeners
      * @see {@link TextWatcher#beforeTextChanged(CharSequence, int, int, int)}
@@ -0,0 +1,121 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.views;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.cooltechworks.formatter.WhatsappParseResult;
+import com.cooltechworks.formatter.WhatsappParser;
+import com.cooltechworks.formatter.WhatsappRules;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Off main thread parsing of large texts.
+ *
+ * The text is parsed from an immutable snapshot on the configured executor, and the result is handed back
+ * on the main thread with the version of the text it was taken from. Callers drop results whose version
+ * is not the current one.
+ */
+final class WhatsappAsync {
+
+    /**
+     * Texts, or regions of text, shorter than this are parsed on the calling thread.
+     */
+    static final int THRESHOLD = 4 * 1024;
+
+    private static volatile Executor sExecutor;
+
+    private static Handler sMainHandler;
+
+    private WhatsappAsync() {
+    }
+
+    /**
+     * Callback of an async parse, called on the main thread.
+     */
+    interface Callback {
+        /**
+         * @param parseNanos - parse duration in nanoseconds, 0 when no {@link FormatterMetrics} is installed.
+         */
+        void onParsed(String snapshot, WhatsappParseResult result, int version, long parseNanos);
+    }
+
+    static void setExecutor(Executor executor) {
+        sExecutor = executor;
+    }
+
+    /**
+     * @return true if a text of the given length should be parsed off the main thread.
+     */
+    static boolean shouldParse(int length) {
+        return sExecutor != null && length >= THRESHOLD;
+    }
+
+    /**
+     * Parses the snapshot on the executor.
+     * @param snapshot - immutable copy of the text.
+     * @param keepFlags - whether the flags are kept in the text.
+     * @param version - version of the text the snapshot was taken from.
+     * @param callback - callback receiving the result on the main thread.
+     */
+    static void parse(final String snapshot, final boolean keepFlags, final int version, final Callback callback) {
+
+        if (sMainHandler == null) {
+            sMainHandler = new Handler(Looper.getMainLooper());
+        }
+        final Handler mainHandler = sMainHandler;
+        final WhatsappRules rules = WhatsappViewCompat.getRules();
+
+        Executor executor = sExecutor;
+        if (executor == null) {
+            boolean measure = WhatsappMetrics.get() != null;
+            long start = measure ? WhatsappMetrics.beginSection(WhatsappMetrics.SECTION_PARSE) : 0;
+            WhatsappParseResult result = parse(snapshot, keepFlags, rules);
+            callback.onParsed(snapshot, result, version, measure ? WhatsappMetrics.endSection(start) : 0);
+            return;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+
+                boolean measure = WhatsappMetrics.get() != null;
+                long start = measure ? WhatsappMetrics.beginSection(WhatsappMetrics.SECTION_PARSE) : 0;
+                final WhatsappParseResult result = parse(snapshot, keepFlags, rules);
+                final long parseNanos = measure ? WhatsappMetrics.endSection(start) : 0;
+
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onParsed(snapshot, result, version, parseNanos);
+                    }
+                });
+            }
+        });
+    }
+
+    private static WhatsappParseResult parse(String snapshot, boolean keepFlags, WhatsappRules rules) {
+        WhatsappParser parser = WhatsappParser.obtain();
+        parser.parse(snapshot, keepFlags, rules);
+        WhatsappParseResult result = parser.getResult();
+        parser.recycle();
+        return result;
+    }
+}
@@ -0,0 +1,529 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.views;
+
+import android.graphics.Rect;
+import android.text.Editable;
+import android.text.Layout;
+import android.text.TextUtils;
+import android.widget.TextView;
+
+import com.cooltechworks.formatter.WhatsappParseResult;
+import com.cooltechworks.formatter.WhatsappParser;
+import com.cooltechworks.formatter.WhatsappRules;
+import com.cooltechworks.formatter.WhatsappSpanList;
+
+import java.util.Arrays;
+
+import static com.cooltechworks.views.WhatsappUtil.INVALID_INDEX;
+import static com.cooltechworks.views.WhatsappUtil.NEW_LINE;
+
+/**
+ * Incremental formatter of an editable text, with the flags kept in the text.
+ *
+ * Flags never cross a {@link WhatsappUtil#NEW_LINE}, so only the lines touched since the last pass are
+ * parsed. The computed spans are then reconciled with the ones already on the text: only the spans that
+ * changed are added or removed, and the text itself is never replaced.
+ *
+ * Most keystrokes cannot change the spans at all: an edit that neither adds nor removes a flag character or
+ * a line break, and does not touch a flag character, leaves every flag paired the same way. The spans on the
+ * text already follow such edits, so the pass skips parsing.
+ *
+ * A large changed region, such as a pasted document, is formatted in slices spread over several frames of the
+ * {@link WhatsappFormatScheduler}: the visible lines first, then the rest from the top, within the frame budget.
+ * Lines not reached yet keep their previous spans until their slice runs.
+ */
+class WhatsappEditFormatter {
+
+    /**
+     * Notified after a pass changed the spans of the text.
+     */
+    interface Callback {
+        void onFormatted(Editable text);
+    }
+
+    /**
+     * Changed regions longer than this, in characters, are formatted in slices.
+     */
+    static final int SLICE_THRESHOLD = 16 * 1024;
+
+    /**
+     * Length of the text parsed by a slice, extended to the end of its last line.
+     */
+    private static final int SLICE_LENGTH = 2 * 1024;
+
+    private final WhatsappParser mParser = new WhatsappParser();
+    private final TextView mView;
+    private final Callback mCallback;
+
+    /**
+     * Number of passes that changed the spans, reported to the {@link FormatterMetrics}.
+     */
+    private int mFormatCount;
+
+    /**
+     * Version of the text, bumped on every change. Async results of an older version are dropped.
+     */
+    private int mVersion;
+    private int mPendingVersion = INVALID_INDEX;
+
+    /**
+     * Region changed since the last pass, in current text offsets. {@link WhatsappUtil#INVALID_INDEX} when clean.
+     */
+    private int mDirtyStart = INVALID_INDEX;
+    private int mDirtyEnd = INVALID_INDEX;
+
+    /**
+     * True if an edit since the last pass may have changed the spans.
+     */
+    private boolean mStructural;
+
+    /**
+     * True while a sliced pass is not over.
+     */
+    private boolean mSlicing;
+
+    /**
+     * Lines of the changed region already formatted by the sliced pass, in current text offsets, from the
+     * start of the first line to the end of the last one. {@link WhatsappUtil#INVALID_INDEX} when none.
+     */
+    private int mDoneStart = INVALID_INDEX;
+    private int mDoneEnd = INVALID_INDEX;
+
+    /**
+     * Visible lines found by {@link #findVisibleLines(Editable, int, int)}.
+     */
+    private final Rect mVisibleRect = new Rect();
+    private int mVisibleStart;
+    private int mVisibleEnd;
+
+    /**
+     * Expected spans of the last pass. Keys hold the start in the high bits and the expected index in the low bits.
+     */
+    private long[] mKeys = new long[0];
+    private int[] mExpectedEnds = new int[0];
+    private int[] mExpectedKinds = new int[0];
+    private boolean[] mMatched = new boolean[0];
+    private int mExpectedCount;
+
+    WhatsappEditFormatter(TextView view, Callback callback) {
+        mView = view;
+        mCallback = callback;
+    }
+
+    /**
+     * Records the text about to be replaced, with the arguments of
+     * {@link android.text.TextWatcher#beforeTextChanged(CharSequence, int, int, int)}.
+     */
+    void beforeTextChanged(CharSequence s, int start, int count) {
+        if (!mStructural) {
+            mStructural = hasStructuralChar(s, start, start + count, WhatsappViewCompat.getRules());
+        }
+    }
+
+    /**
+     * Records a text change, with the arguments of {@link android.text.TextWatcher#onTextChanged(CharSequence, int, int, int)}.
+     */
+    void onTextChanged(CharSequence s, int start, int before, int count) {
+
+        int end = start + count;
+        mVersion++;
+
+        if (mDoneStart != INVALID_INDEX) {
+            if (start + before < mDoneStart) {
+                mDoneStart += count - before;
+                mDoneEnd += count - before;
+            } else if (start <= mDoneEnd) {
+                mDoneStart = mDoneEnd = INVALID_INDEX;
+            }
+        }
+
+        if (!mStructural) {
+            // the inserted text and its neighbours, which are also the neighbours of the removed text
+            mStructural = hasStructuralChar(s, Math.max(start - 1, 0), Math.min(end + 1, s.length()),
+                    WhatsappViewCompat.getRules());
+        }
+
+        if (mDirtyStart == INVALID_INDEX) {
+            mDirtyStart = start;
+            mDirtyEnd = end;
+            return;
+        }
+
+        if (mDirtyEnd >= start + before) {
+            mDirtyEnd += count - before;
+        } else if (mDirtyEnd > start) {
+            mDirtyEnd = end;
+        }
+
+        mDirtyStart = Math.min(mDirtyStart, start);
+        mDirtyEnd = Math.max(mDirtyEnd, end);
+    }
+
+    /**
+     * Marks the whole text as changed. The region ends at the text length, so later edits shift it like any
+     * other dirty region while an async parse or a sliced pass of the whole text is pending.
+     * @param text - live text of the view.
+     */
+    void invalidate(CharSequence text) {
+        mDirtyStart = 0;
+        mDirtyEnd = text.length();
+        mStructural = true;
+        mDoneStart = mDoneEnd = INVALID_INDEX;
+    }
+
+    /**
+     * Drops the async parse and the sliced pass in progress, the formatter being removed from its view.
+     */
+    void cancel() {
+        mVersion++;
+        mPendingVersion = INVALID_INDEX;
+        mSlicing = false;
+    }
+
+    /**
+     * @return true if some text changed since the last pass.
+     */
+    boolean isDirty() {
+        return mDirtyStart != INVALID_INDEX;
+    }
+
+    /**
+     * Re-formats the lines changed since the last pass. Very large regions are formatted in slices, until
+     * the frame deadline of the {@link WhatsappFormatScheduler}. Other large regions are parsed off the main
+     * thread when an async executor is set, and applied later if the text did not change meanwhile.
+     * @param text - live text of the view.
+     * @return true if a sliced pass is not over and should go on in the next frame.
+     */
+    boolean format(final Editable text) {
+
+        if (mSlicing) {
+            // changes made since the last slices are picked up by the next ones
+            return formatSlices(text);
+        }
+
+        if (!isDirty() || mPendingVersion == mVersion) {
+            return false;
+        }
+
+        if (!mStructural) {
+            mDirtyStart = mDirtyEnd = INVALID_INDEX;
+            mCallback.onFormatted(text);
+            return false;
+        }
+
+        int length = text.length();
+        final int start = lineStart(text, Math.min(mDirtyStart, length));
+        final int end = lineEnd(text, Math.min(mDirtyEnd, length));
+
+        if (end - start > SLICE_THRESHOLD) {
+            mSlicing = true;
+            return formatSlices(text);
+        }
+
+        if (WhatsappAsync.shouldParse(end - start)) {
+            mPendingVersion = mVersion;
+            WhatsappAsync.parse(text.subSequence(start, end).toString(), true, mVersion, new WhatsappAsync.Callback() {
+                @Override
+                public void onParsed(String snapshot, WhatsappParseResult result, int version, long parseNanos) {
+                    if (version == mVersion) {
+                        apply(text, start, end, result, start, parseNanos);
+                    }
+                }
+            });
+            return false;
+        }
+
+        boolean measure = WhatsappMetrics.get() != null;
+        long parseStart = measure ? WhatsappMetrics.beginSection(WhatsappMetrics.SECTION_PARSE) : 0;
+        mParser.parse(text, start, end, true, WhatsappViewCompat.getRules());
+        long parseNanos = measure ? WhatsappMetrics.endSection(parseStart) : 0;
+
+        apply(text, start, end, mParser, 0, parseNanos);
+        mParser.recycle();
+        return false;
+    }
+
+    private void apply(Editable text, int start, int end, WhatsappSpanList spans, int offset, long parseNanos) {
+
+        mDirtyStart = mDirtyEnd = INVALID_INDEX;
+        mPendingVersion = INVALID_INDEX;
+        mStructural = false;
+
+        applySpans(text, start, end, spans, offset, parseNanos);
+        mCallback.onFormatted(text);
+    }
+
+    /**
+     * Reconciles the spans of the lines between start and end, as one format pass.
+     */
+    private void applySpans(Editable text, int start, int end, WhatsappSpanList spans, int offset, long parseNanos) {
+
+        mFormatCount++;
+
+        FormatterMetrics metrics = WhatsappMetrics.get();
+        if (metrics == null) {
+            reconcile(text, start, end, spans, offset);
+        } else {
+            long applyStart = WhatsappMetrics.beginSection(WhatsappMetrics.SECTION_APPLY);
+            reconcile(text, start, end, spans, offset);
+            WhatsappMetrics.endSection(applyStart);
+            metrics.onFormat(mView, end - start, spans.getSpanCount(), parseNanos, mFormatCount);
+        }
+    }
+
+    /**
+     * Runs slices of the sliced pass until the frame deadline.
+     * @return true if some lines are left for the next frame.
+     */
+    private boolean formatSlices(Editable text) {
+
+        long deadline = WhatsappFormatScheduler.getInstance().getFrameDeadline();
+        boolean formatted = false;
+
+        while (formatNextSlice(text)) {
+            formatted = true;
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
+        }
+
+        boolean more = isDirty();
+        if (!more) {
+            mSlicing = false;
+            mStructural = false;
+            mDoneStart = mDoneEnd = INVALID_INDEX;
+        }
+
+        if (formatted) {
+            mCallback.onFormatted(text);
+        }
+        return more;
+    }
+
+    /**
+     * Formats the visible lines of the changed region not formatted yet, or else the next slice from its start.
+     * @return false if the region is fully formatted.
+     */
+    private boolean formatNextSlice(Editable text) {
+
+        if (!isDirty()) {
+            return false;
+        }
+
+        int length = text.length();
+        int start = lineStart(text, Math.min(mDirtyStart, length));
+        int end = lineEnd(text, Math.min(mDirtyEnd, length));
+
+        if (findVisibleLines(text, start, end)) {
+
+            if (mDoneStart == INVALID_INDEX || mVisibleEnd < mDoneStart - 1 || mVisibleStart > mDoneEnd + 1) {
+                // scrolled away from the lines formatted first, they are formatted again with the rest
+                formatSlice(text, mVisibleStart, mVisibleEnd);
+                mDoneStart = mVisibleStart;
+                mDoneEnd = mVisibleEnd;
+                return true;
+            }
+
+            boolean formatted = false;
+            if (mVisibleStart < mDoneStart) {
+                formatSlice(text, mVisibleStart, mDoneStart - 1);
+                mDoneStart = mVisibleStart;
+                formatted = true;
+            }
+            if (mVisibleEnd > mDoneEnd) {
+                formatSlice(text, mDoneEnd + 1, mVisibleEnd);
+                mDoneEnd = mVisibleEnd;
+                formatted = true;
+            }
+            if (formatted) {
+                return true;
+            }
+        }
+
+        int sliceEnd;
+        if (mDoneStart != INVALID_INDEX && start >= mDoneStart) {
+            // the region starts with lines formatted first
+            sliceEnd = mDoneEnd;
+            mDoneStart = mDoneEnd = INVALID_INDEX;
+        } else {
+            sliceEnd = lineEnd(text, Math.min(start + SLICE_LENGTH, end));
+            if (mDoneStart != INVALID_INDEX && sliceEnd >= mDoneStart) {
+                sliceEnd = mDoneStart - 1;
+            }
+            formatSlice(text, start, sliceEnd);
+        }
+
+        if (sliceEnd >= end) {
+            mDirtyStart = mDirtyEnd = INVALID_INDEX;
+        } else {
+            mDirtyStart = sliceEnd + 1;
+        }
+        return true;
+    }
+
+    private void formatSlice(Editable text, int start, int end) {
+
+        boolean measure = WhatsappMetrics.get() != null;
+        long parseStart = measure ? WhatsappMetrics.beginSection(WhatsappMetrics.SECTION_PARSE) : 0;
+        mParser.parse(text, start, end, true, WhatsappViewCompat.getRules());
+        long parseNanos = measure ? WhatsappMetrics.endSection(parseStart) : 0;
+
+        applySpans(text, start, end, mParser, 0, parseNanos);
+        mParser.recycle();
+    }
+
+    /**
+     * Finds the lines shown on screen between start and end, into {@link #mVisibleStart} and {@link #mVisibleEnd}.
+     * @return false if none of them is shown.
+     */
+    private boolean findVisibleLines(Editable text, int start, int end) {
+
+        Layout layout = mView.getLayout();
+        if (layout == null || !mView.getLocalVisibleRect(mVisibleRect)) {
+            return false;
+        }
+
+        int offset = mView.getScrollY() - mView.getTotalPaddingTop();
+        int length = text.length();
+        int visibleStart = Math.min(layout.getLineStart(layout.getLineForVertical(mVisibleRect.top + offset)), length);
+        int visibleEnd = Math.min(layout.getLineEnd(layout.getLineForVertical(mVisibleRect.bottom + offset)), length);
+
+        if (visibleStart > end || visibleEnd < start) {
+            return false;
+        }
+
+        mVisibleStart = lineStart(text, Math.max(visibleStart, start));
+        mVisibleEnd = lineEnd(text, Math.min(visibleEnd, end));
+        return true;
+    }
+
+    /**
+     * Diffs the parsed spans against the formatter spans on the lines between start and end, removing the
+     * stale ones and adding the missing ones.
+     */
+    private void reconcile(Editable text, int start, int end, WhatsappSpanList parsed, int offset) {
+
+        mExpectedCount = 0;
+        ensureCapacity(parsed.getSpanCount() * 3);
+
+        for (int i = 0; i < parsed.getSpanCount(); i++) {
+            int spanStart = parsed.getSpanStart(i) + offset;
+            int spanEnd = parsed.getSpanEnd(i) + offset;
+            int flagLength = parsed.getSpanFlagLength(i);
+
+            addExpected(spanStart, spanEnd, parsed.getSpanType(i));
+            addExpected(spanStart - flagLength, spanStart, WhatsappSpans.FLAG_KIND);
+            addExpected(spanEnd, spanEnd + flagLength, WhatsappSpans.FLAG_KIND);
+        }
+
+        Arrays.sort(mKeys, 0, mExpectedCount);
+        Arrays.fill(mMatched, 0, mExpectedCount, false);
+
+        WhatsappSpans.FormatSpan[] spans = text.getSpans(start, end, WhatsappSpans.FormatSpan.class);
+
+        for (int i = 0; i < spans.length; i++) {
+            int spanStart = text.getSpanStart(spans[i]);
+            int spanEnd = text.getSpanEnd(spans[i]);
+
+            if (!WhatsappSpans.isInRegion(spanStart, spanEnd, start, end)) {
+                continue;
+            }
+
+            int index = findExpected(spanStart, spanEnd, WhatsappSpans.kindOf(spans[i]));
+            if (index == INVALID_INDEX) {
+                WhatsappSpans.removeSpan(text, spans[i]);
+            } else {
+                mMatched[index] = true;
+            }
+        }
+
+        for (int i = 0; i < mExpectedCount; i++) {
+            int index = (int) mKeys[i];
+            if (!mMatched[index]) {
+                int spanStart = (int) (mKeys[i] >>> 32);
+                WhatsappSpans.setSpan(text, mExpectedKinds[index], spanStart, mExpectedEnds[index]);
+            }
+        }
+    }
+
+    private void addExpected(int start, int end, int kind) {
+        int index = mExpectedCount++;
+        mKeys[index] = ((long) start << 32) | index;
+        mExpectedEnds[index] = end;
+        mExpectedKinds[index] = kind;
+    }
+
+    /**
+     * @return index of the unmatched expected span with the given range and kind, {@link WhatsappUtil#INVALID_INDEX} if none.
+     */
+    private int findExpected(int start, int end, int kind) {
+
+        int low = 0, high = mExpectedCount;
+        long key = (long) start << 32;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mKeys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        for (int i = low; i < mExpectedCount && (mKeys[i] >>> 32) == start; i++) {
+            int index = (int) mKeys[i];
+            if (!mMatched[index] && mExpectedEnds[index] == end && mExpectedKinds[index] == kind) {
+                return index;
+            }
+        }
+
+        return INVALID_INDEX;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (mKeys.length < capacity) {
+            mKeys = new long[capacity];
+            mExpectedEnds = new int[capacity];
+            mExpectedKinds = new int[capacity];
+            mMatched = new boolean[capacity];
+        }
+    }
+
+    /**
+     * @return true if a character between start and end is a line break or part of a flag.
+     */
+    private static boolean hasStructuralChar(CharSequence text, int start, int end, WhatsappRules rules) {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == NEW_LINE || rules.isFlagChar(c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int lineStart(CharSequence text, int index) {
+        return index == 0 ? 0 : TextUtils.lastIndexOf(text, NEW_LINE, index - 1) + 1;
+    }
+
+    private static int lineEnd(CharSequence text, int index) {
+        int end = TextUtils.indexOf(text, NEW_LINE, index);
+        return end == INVALID_INDEX ? text.length() : end;
+    }
+}
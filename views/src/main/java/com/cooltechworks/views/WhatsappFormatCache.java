@@ -0,0 +1,189 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.views;
+
+import android.content.ComponentCallbacks2;
+import android.support.v4.util.LruCache;
+import android.text.Spanned;
+import android.text.SpannedString;
+
+import com.cooltechworks.formatter.WhatsappRules;
+
+/**
+ * Bounded cache of TextView formatted texts, keyed on the raw text.
+ *
+ * Rebinding a message that was already formatted returns the cached text without parsing it again. Entries
+ * are immutable, evicted least recently used first, and sized by an estimate of their memory footprint.
+ *
+ * Texts without spans are their own formatted text and are not cached: formatting them again does not
+ * allocate, while an entry would cost a key, a copy and a slot.
+ */
+public class WhatsappFormatCache {
+
+    /**
+     * Default maximum size, in bytes.
+     */
+    public static final int DEFAULT_MAX_SIZE = 512 * 1024;
+
+    /**
+     * Estimated footprint of a cache entry and of a span, in bytes.
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int SPAN_OVERHEAD = 48;
+
+    /**
+     * Estimated footprint of a span of a compact formatted text, whose span objects are created when drawn.
+     */
+    private static final int COMPACT_SPAN_OVERHEAD = 24;
+
+    private final LruCache<String, Spanned> mCache;
+
+    /**
+     * @param maxSize - maximum size of the cache, in bytes.
+     */
+    public WhatsappFormatCache(int maxSize) {
+        mCache = new LruCache<String, Spanned>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Spanned value) {
+                int spans = value instanceof WhatsappSpannedText
+                        ? ((WhatsappSpannedText) value).getSpanCount() * COMPACT_SPAN_OVERHEAD
+                        : value.getSpans(0, value.length(), Object.class).length * SPAN_OVERHEAD;
+                return ENTRY_OVERHEAD + (key.length() + value.length()) * 2 + spans;
+            }
+        };
+    }
+
+    /**
+     * @param text - raw text.
+     * @return formatted text, null if not cached.
+     */
+    public Spanned get(CharSequence text) {
+        return hasFlagStart(text) ? mCache.get(text.toString()) : null;
+    }
+
+    /**
+     * Caches the formatted text of the raw text, unless it has no span.
+     * @param text - raw text.
+     * @param formatted - formatted text, copied into an immutable text unless it already is one.
+     * @return cached formatted text, or the formatted text itself when it has no span.
+     */
+    public CharSequence put(CharSequence text, CharSequence formatted) {
+
+        if (!hasSpans(formatted)) {
+            return formatted;
+        }
+
+        Spanned value = formatted instanceof WhatsappSpannedText
+                ? (Spanned) formatted : new SpannedString(formatted);
+        mCache.put(text.toString(), value);
+        return value;
+    }
+
+    /**
+     * @return the formatted text of the raw text, from the cache or formatted and cached. A text without flag
+     * is returned as is, without a lookup.
+     */
+    public CharSequence getOrFormat(CharSequence text) {
+
+        if (!hasFlagStart(text)) {
+            return text;
+        }
+
+        String key = text.toString();
+        Spanned value = mCache.get(key);
+        if (value != null) {
+            return value;
+        }
+        return put(key, WhatsappViewCompat.extractFlagsForTextView(key));
+    }
+
+    /**
+     * @return true if a flag of the current rules may start in the text.
+     */
+    private static boolean hasFlagStart(CharSequence text) {
+        WhatsappRules rules = WhatsappViewCompat.getRules();
+        for (int i = 0; i < text.length(); i++) {
+            if (rules.isFlagStart(text.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasSpans(CharSequence formatted) {
+        if (formatted instanceof WhatsappSpannedText) {
+            return ((WhatsappSpannedText) formatted).getSpanCount() > 0;
+        }
+        return formatted instanceof Spanned
+                && ((Spanned) formatted).getSpans(0, formatted.length(), Object.class).length > 0;
+    }
+
+    /**
+     * Releases memory, to be called from {@link ComponentCallbacks2#onTrimMemory(int)}.
+     * @param level - trim level.
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            mCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mCache.trimToSize(mCache.maxSize() / 2);
+        }
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    /**
+     * @return number of lookups that returned a cached text.
+     */
+    public int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    /**
+     * @return number of lookups that found no cached text.
+     */
+    public int getMissCount() {
+        return mCache.missCount();
+    }
+
+    /**
+     * @return number of evicted entries.
+     */
+    public int getEvictionCount() {
+        return mCache.evictionCount();
+    }
+
+    /**
+     * @return current size of the cache, in bytes.
+     */
+    public int getSize() {
+        return mCache.size();
+    }
+
+    /**
+     * @return maximum size of the cache, in bytes.
+     */
+    public int getMaxSize() {
+        return mCache.maxSize();
+    }
+}
@@ -0,0 +1,361 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.views;
+
+import android.annotation.TargetApi;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+import android.widget.TextView;
+
+import com.cooltechworks.formatter.WhatsappRules;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+
+/**
+ * Format scheduler shared by every formatted view, running on the main thread.
+ *
+ * Each view owns a single {@link Task}. Rescheduling a pending task replaces it, so a burst of keystrokes
+ * gives one format pass. The delay follows the measured cost of the view's passes and the typing rate,
+ * and a typed flag character is formatted right away.
+ *
+ * Due tasks of every view run together in a single Choreographer frame callback (a single main thread
+ * message below API 16), before the frame is drawn. Tasks of visible views run first, and the frame stops
+ * running tasks once its budget is spent: the others run in the next frames. The work per frame therefore
+ * stays bounded however many views are formatted.
+ *
+ * The scheduler only keeps weak references to the pending tasks, each view holding its own task, so a
+ * pending pass never keeps a view alive, whether or not the view was ever attached.
+ */
+class WhatsappFormatScheduler {
+
+    /**
+     * Bounds of the format delay, in milliseconds.
+     */
+    static final long MIN_DELAY = 10;
+    static final long MAX_DELAY = 220;
+
+    /**
+     * Time given to format passes in a frame, in nanoseconds. A frame runs at least one pass.
+     */
+    static final long FRAME_BUDGET = 6 * 1000000L;
+
+    /**
+     * The delay is kept this many times above the average cost of a pass.
+     */
+    private static final int COST_FACTOR = 4;
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private static WhatsappFormatScheduler sInstance;
+
+    /**
+     * Pending tasks, in scheduling order. A task whose view was collected is dropped by the next dispatch.
+     */
+    private final ArrayList<WeakReference<Task>> mTasks = new ArrayList<>();
+
+    /**
+     * Due tasks of the running frame, visible ones first.
+     */
+    private final ArrayList<Task> mDueTasks = new ArrayList<>();
+    private final Rect mVisibleRect = new Rect();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mDispatch = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+    private FrameDispatch mFrameDispatch;
+
+    /**
+     * Uptime at which the posted dispatch runs, 0 when none is posted.
+     */
+    private long mPostedTime;
+
+    /**
+     * Deadline of the running frame, in {@link System#nanoTime()} time, 0 outside of a frame.
+     */
+    private long mFrameDeadline;
+
+    /**
+     * @return the scheduler, to be used from the main thread only.
+     */
+    static WhatsappFormatScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new WhatsappFormatScheduler();
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return time until which a pass can keep working in the current frame, in {@link System#nanoTime()}
+     * time. Outside of a frame, a frame budget from now.
+     */
+    long getFrameDeadline() {
+        return mFrameDeadline != 0 ? mFrameDeadline : System.nanoTime() + FRAME_BUDGET;
+    }
+
+    /**
+     * Schedules a format pass of the task, replacing the pending one if any.
+     */
+    void schedule(Task task) {
+
+        if (task.mPending) {
+            FormatterMetrics metrics = WhatsappMetrics.get();
+            if (metrics != null) {
+                metrics.onFormatCancelled(task.mView);
+            }
+        }
+
+        enqueue(task, task.mFlagTyped ? 0 : task.getDelay());
+        task.mFlagTyped = false;
+    }
+
+    /**
+     * Schedules a format pass of the task in the next frame, keeping the pending one if any.
+     */
+    void scheduleNextFrame(Task task) {
+        if (!task.mPending || task.mDueTime > SystemClock.uptimeMillis()) {
+            enqueue(task, 0);
+        }
+    }
+
+    /**
+     * Cancels the pending format pass of the task.
+     */
+    void cancel(Task task) {
+        if (task.mPending) {
+            task.mPending = false;
+            mTasks.remove(task.mReference);
+        }
+    }
+
+    private void enqueue(Task task, long delay) {
+
+        long now = SystemClock.uptimeMillis();
+        task.mDueTime = now + delay;
+        if (!task.mPending) {
+            task.mPending = true;
+            mTasks.add(task.mReference);
+        }
+
+        post(task.mDueTime, now);
+    }
+
+    /**
+     * Posts the dispatch to run at the given uptime, unless one is posted to run before.
+     */
+    private void post(long time, long now) {
+
+        if (mPostedTime != 0 && mPostedTime <= time) {
+            return;
+        }
+
+        long delay = Math.max(0, time - now);
+        mPostedTime = now + delay;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            if (mFrameDispatch == null) {
+                mFrameDispatch = new FrameDispatch(this);
+            }
+            mFrameDispatch.post(delay);
+        } else {
+            mHandler.removeCallbacks(mDispatch);
+            mHandler.postDelayed(mDispatch, delay);
+        }
+    }
+
+    /**
+     * Runs the due tasks, visible views first, until the frame budget is spent.
+     */
+    private void dispatch() {
+
+        mPostedTime = 0;
+        long now = SystemClock.uptimeMillis();
+
+        int visibleCount = 0;
+        for (int i = 0; i < mTasks.size(); ) {
+            Task task = mTasks.get(i).get();
+            if (task == null) {
+                // the view was collected with its pass pending
+                mTasks.remove(i);
+                continue;
+            }
+            if (task.mDueTime <= now) {
+                if (task.mView.isShown() && task.mView.getGlobalVisibleRect(mVisibleRect)) {
+                    mDueTasks.add(visibleCount++, task);
+                } else {
+                    mDueTasks.add(task);
+                }
+            }
+            i++;
+        }
+
+        mFrameDeadline = System.nanoTime() + FRAME_BUDGET;
+
+        for (int i = 0; i < mDueTasks.size(); i++) {
+            Task task = mDueTasks.get(i);
+            // a pass may have cancelled or rescheduled another task
+            if (!task.mPending || task.mDueTime > now) {
+                continue;
+            }
+
+            task.mPending = false;
+            mTasks.remove(task.mReference);
+
+            if (task.run()) {
+                // sliced pass, carried on in the next frame
+                enqueue(task, 0);
+            }
+
+            if (System.nanoTime() >= mFrameDeadline) {
+                break;
+            }
+        }
+
+        mFrameDeadline = 0;
+        mDueTasks.clear();
+
+        if (!mTasks.isEmpty()) {
+            long next = Long.MAX_VALUE;
+            for (int i = 0; i < mTasks.size(); i++) {
+                Task task = mTasks.get(i).get();
+                if (task != null) {
+                    next = Math.min(next, task.mDueTime);
+                }
+            }
+            // tasks left over by the budget are due, they run in the next frame
+            if (next != Long.MAX_VALUE) {
+                post(Math.max(next, now + 1), now);
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class FrameDispatch implements Choreographer.FrameCallback {
+
+        private final WhatsappFormatScheduler mScheduler;
+
+        FrameDispatch(WhatsappFormatScheduler scheduler) {
+            mScheduler = scheduler;
+        }
+
+        void post(long delay) {
+            Choreographer choreographer = Choreographer.getInstance();
+            choreographer.removeFrameCallback(this);
+            choreographer.postFrameCallbackDelayed(this, delay);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mScheduler.dispatch();
+        }
+    }
+
+    /**
+     * Format pass of a single view. One instance is reused for every pass of the view, and must be held by
+     * the view: the scheduler does not keep it alive.
+     */
+    abstract static class Task {
+
+        private final TextView mView;
+
+        /**
+         * Reference queued by the scheduler, one per task so that scheduling does not allocate.
+         */
+        private final WeakReference<Task> mReference = new WeakReference<>(this);
+
+        private boolean mPending;
+        private boolean mFlagTyped;
+        private long mDueTime;
+
+        private long mLastChangeTime;
+
+        /**
+         * Running averages of the interval between two text changes, in milliseconds, and of the cost of a
+         * pass, in nanoseconds.
+         */
+        private long mAverageInterval = MAX_DELAY;
+        private long mAverageCost;
+
+        /**
+         * @param view - view formatted by the task.
+         */
+        Task(TextView view) {
+            mView = view;
+        }
+
+        /**
+         * Performs the format pass.
+         * @return true if the pass is not over and should go on in the next frame.
+         */
+        abstract boolean format();
+
+        /**
+         * Records a text change, with the arguments of {@link android.text.TextWatcher#onTextChanged(CharSequence, int, int, int)}.
+         */
+        void onTextChanged(CharSequence s, int start, int count) {
+
+            long now = SystemClock.uptimeMillis();
+            if (mLastChangeTime != 0) {
+                mAverageInterval = average(mAverageInterval, Math.min(now - mLastChangeTime, MAX_DELAY));
+            }
+            mLastChangeTime = now;
+
+            WhatsappRules rules = WhatsappViewCompat.getRules();
+            for (int i = start; i < start + count && !mFlagTyped; i++) {
+                mFlagTyped = rules.isFlagStart(s.charAt(i));
+            }
+        }
+
+        private boolean run() {
+            long start = System.nanoTime();
+            boolean more = format();
+            if (!more) {
+                // slices of a sliced pass fill the frame budget, they are not the cost of a keystroke
+                mAverageCost = average(mAverageCost, System.nanoTime() - start);
+            }
+            return more;
+        }
+
+        /**
+         * @return delay before the next pass: a few times the cost of a pass, and at least the typing interval
+         * while the user types fast.
+         */
+        long getDelay() {
+
+            long delay = Math.max(MIN_DELAY, mAverageCost * COST_FACTOR / NANOS_PER_MILLI);
+
+            if (mAverageInterval < MAX_DELAY) {
+                delay = Math.max(delay, mAverageInterval);
+            }
+
+            return Math.min(delay, MAX_DELAY);
+        }
+
+        private static long average(long average, long sample) {
+            return (average * 3 + sample) / 4;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.views;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.text.TextWatcher;
+import android.view.View;
+import android.widget.TextView;
+
+/**
+ * Formatting set up on a view by {@link WhatsappViewCompat#applyFormatting(TextView, TextWatcher...)} or
+ * {@link WhatsappViewCompat#applyFormatting(android.widget.EditText, TextWatcher...)}.
+ *
+ * Pending format work is cancelled when the view is detached from its window (API 12 and above) and resumed
+ * when it is attached again. {@link #detach()} removes the formatting from the view for good, for instance
+ * before reusing the view with another formatter. The handle references the view, like any of its listeners.
+ */
+public final class WhatsappFormattingHandle {
+
+    /**
+     * Pending work of the formatting, run on the main thread.
+     */
+    interface Callback {
+
+        /**
+         * The view was attached to a window.
+         */
+        void onViewAttached();
+
+        /**
+         * The view was detached from its window, pending work is to be cancelled.
+         */
+        void onViewDetached();
+
+        /**
+         * The formatting was detached from the view, pending work is to be dropped.
+         */
+        void onDetach();
+    }
+
+    private final TextView mView;
+    private final Callback mCallback;
+
+    private TextWatcher mWatcher;
+    private AttachListener mAttachListener;
+    private boolean mDetached;
+
+    WhatsappFormattingHandle(TextView view, Callback callback) {
+        mView = view;
+        mCallback = callback;
+    }
+
+    /**
+     * Adds the watcher of the formatting to the view, and starts following the attach state of the view.
+     */
+    void attach(TextWatcher watcher) {
+        mWatcher = watcher;
+        mView.addTextChangedListener(watcher);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+            mAttachListener = AttachListener.add(mView, mCallback);
+        }
+    }
+
+    /**
+     * Removes the formatting from the view and cancels its pending work. The text keeps its current
+     * formatting, and watchers given to applyFormatting are not notified anymore.
+     */
+    public void detach() {
+
+        if (mDetached) {
+            return;
+        }
+        mDetached = true;
+
+        if (mWatcher != null) {
+            mView.removeTextChangedListener(mWatcher);
+        }
+        if (mAttachListener != null) {
+            mAttachListener.remove(mView);
+        }
+
+        mWatcher = null;
+        mAttachListener = null;
+        mCallback.onDetach();
+    }
+
+    /**
+     * @return true once {@link #detach()} was called.
+     */
+    public boolean isDetached() {
+        return mDetached;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR1)
+    private static class AttachListener implements View.OnAttachStateChangeListener {
+
+        private final Callback mCallback;
+
+        private AttachListener(Callback callback) {
+            mCallback = callback;
+        }
+
+        static AttachListener add(View view, Callback callback) {
+            AttachListener listener = new AttachListener(callback);
+            view.addOnAttachStateChangeListener(listener);
+            return listener;
+        }
+
+        void remove(View view) {
+            view.removeOnAttachStateChangeListener(this);
+        }
+
+        @Override
+        public void onViewAttachedToWindow(View v) {
+            mCallback.onViewAttached();
+        }
+
+        @Override
+        public void onViewDetachedFromWindow(View v) {
+            mCallback.onViewDetached();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.views;
+
+import android.graphics.Typeface;
+import android.text.Spanned;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.TypefaceSpan;
+
+import com.cooltechworks.formatter.WhatsappMarkupWriter;
+import com.cooltechworks.formatter.WhatsappRule;
+import com.cooltechworks.formatter.WhatsappRules;
+import com.cooltechworks.formatter.WhatsappSpanList;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import static com.cooltechworks.views.WhatsappUtil.BOLD_FLAG;
+import static com.cooltechworks.views.WhatsappUtil.ITALIC_FLAG;
+import static com.cooltechworks.views.WhatsappUtil.STRIKE_FLAG;
+
+/**
+ * Immutable copy of a formatted text and of its formatting spans, to be written back to raw markup on any
+ * thread, for instance before sending a message.
+ *
+ * Formatter spans are kept with their rule type. Bold, italic, strikethrough and monospace framework spans
+ * set by the app are mapped to the matching default rules. A text that keeps its flags, like the text of a
+ * {@link WhatsAppEditText}, already holds the markup of the formatter spans, so only the app spans are kept.
+ */
+public final class WhatsappMarkupSnapshot implements WhatsappSpanList {
+
+    private static final String MONOSPACE_FAMILY = "monospace";
+
+    private final String mText;
+    private final WhatsappRules mRules;
+    private final int[] mStarts;
+    private final int[] mEnds;
+    private final char[] mTypes;
+    private final int mSpanCount;
+
+    private WhatsappMarkupSnapshot(String text, WhatsappRules rules, int[] starts, int[] ends, char[] types,
+                                   int spanCount) {
+        mText = text;
+        mRules = rules;
+        mStarts = starts;
+        mEnds = ends;
+        mTypes = types;
+        mSpanCount = spanCount;
+    }
+
+    /**
+     * Copies the text and its formatting spans. To be called on the thread owning the text.
+     * @param text - formatted text.
+     * @return snapshot of the text.
+     */
+    public static WhatsappMarkupSnapshot of(Spanned text) {
+
+        Object[] spans = text.getSpans(0, text.length(), Object.class);
+
+        // app spans created for custom rules are written through their marker, and kept flags already are markup
+        IdentityHashMap<Object, Boolean> ruleSpans = new IdentityHashMap<>();
+        boolean flagsKept = false;
+        for (Object span : spans) {
+            if (span instanceof WhatsappSpans.RuleSpan) {
+                ruleSpans.put(((WhatsappSpans.RuleSpan) span).mSpan, Boolean.TRUE);
+            } else if (span instanceof WhatsappSpans.FlagSpan) {
+                flagsKept = true;
+            }
+        }
+
+        int[] starts = new int[spans.length * 2];
+        int[] ends = new int[spans.length * 2];
+        char[] types = new char[spans.length * 2];
+        int count = 0;
+
+        for (Object span : spans) {
+
+            if (ruleSpans.containsKey(span)) {
+                continue;
+            }
+
+            char first = 0, second = 0;
+
+            if (span instanceof WhatsappSpans.FormatSpan) {
+                int kind = WhatsappSpans.kindOf((WhatsappSpans.FormatSpan) span);
+                if (!flagsKept && kind != WhatsappSpans.FLAG_KIND) {
+                    first = (char) kind;
+                }
+            } else if (span instanceof StyleSpan) {
+                int style = ((StyleSpan) span).getStyle();
+                if ((style & Typeface.BOLD) != 0) {
+                    first = BOLD_FLAG;
+                }
+                if ((style & Typeface.ITALIC) != 0) {
+                    second = ITALIC_FLAG;
+                }
+            } else if (span instanceof StrikethroughSpan) {
+                first = STRIKE_FLAG;
+            } else if (span instanceof TypefaceSpan && MONOSPACE_FAMILY.equals(((TypefaceSpan) span).getFamily())) {
+                first = WhatsappRule.MONOSPACE.getType();
+            }
+
+            if (first != 0 || second != 0) {
+                int start = text.getSpanStart(span);
+                int end = text.getSpanEnd(span);
+                count = addSpan(starts, ends, types, count, first, start, end);
+                count = addSpan(starts, ends, types, count, second, start, end);
+            }
+        }
+
+        return new WhatsappMarkupSnapshot(text.toString(), WhatsappViewCompat.getRules(),
+                Arrays.copyOf(starts, count), Arrays.copyOf(ends, count), Arrays.copyOf(types, count), count);
+    }
+
+    /**
+     * Adds a span of the given type, unless the type is 0.
+     * @return new number of spans.
+     */
+    private static int addSpan(int[] starts, int[] ends, char[] types, int count, char type, int start, int end) {
+        if (type == 0) {
+            return count;
+        }
+        starts[count] = start;
+        ends[count] = end;
+        types[count] = type;
+        return count + 1;
+    }
+
+    /**
+     * @return raw markup of the text, with the rules set when the snapshot was taken. Can be called from any thread.
+     */
+    public String toMarkup() {
+        return WhatsappMarkupWriter.toMarkup(mText, this, mRules);
+    }
+
+    /**
+     * @return text of the snapshot.
+     */
+    public String getText() {
+        return mText;
+    }
+
+    @Override
+    public int getSpanCount() {
+        return mSpanCount;
+    }
+
+    @Override
+    public int getSpanStart(int index) {
+        return mStarts[index];
+    }
+
+    @Override
+    public int getSpanEnd(int index) {
+        return mEnds[index];
+    }
+
+    @Override
+    public char getSpanType(int index) {
+        return mTypes[index];
+    }
+
+    @Override
+    public int getSpanFlagLength(int index) {
+        for (int i = 0; i < mRules.getRuleCount(); i++) {
+            if (mRules.getRule(i).getType() == mTypes[index]) {
+                return mRules.getRule(i).getFlag().length();
+            }
+        }
+        return 0;
+    }
+}
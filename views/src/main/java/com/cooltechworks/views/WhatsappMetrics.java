@@ -0,0 +1,84 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.views;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Holder of the {@link FormatterMetrics} listener, and systrace sections of the formatting work.
+ *
+ * Callers read {@link #get()} once per pass and skip every measure when it is null, so formatting costs
+ * nothing more without a listener.
+ */
+final class WhatsappMetrics {
+
+    static final String SECTION_PARSE = "WhatsappFormatter.parse";
+    static final String SECTION_APPLY = "WhatsappFormatter.apply";
+
+    private static volatile FormatterMetrics sMetrics;
+
+    private WhatsappMetrics() {
+    }
+
+    static void set(FormatterMetrics metrics) {
+        sMetrics = metrics;
+    }
+
+    /**
+     * @return the listener, null when none is installed.
+     */
+    static FormatterMetrics get() {
+        return sMetrics;
+    }
+
+    /**
+     * Opens a trace section, on API 18 and above.
+     * @return start time of the section, in nanoseconds.
+     */
+    static long beginSection(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            beginTraceSection(name);
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Closes the last trace section.
+     * @param start - start time returned by {@link #beginSection(String)}.
+     * @return duration of the section, in nanoseconds.
+     */
+    static long endSection(long start) {
+        long duration = System.nanoTime() - start;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            endTraceSection();
+        }
+        return duration;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void beginTraceSection(String name) {
+        Trace.beginSection(name);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void endTraceSection() {
+        Trace.endSection();
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.views;
+
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+/**
+ * Format pass of a view run just before its next draw. A view that is not attached runs it before its
+ * first draw once attached, and never if it is not shown. A pass pending when the view is detached waits
+ * for the view to be attached again.
+ */
+abstract class WhatsappPreDrawTask implements ViewTreeObserver.OnPreDrawListener {
+
+    private final View mView;
+
+    /**
+     * Observer the task was added to, null when not scheduled.
+     */
+    private ViewTreeObserver mObserver;
+
+    /**
+     * True if a pass was pending when the view was detached.
+     */
+    private boolean mPendingOnAttach;
+
+    /**
+     * @param view - formatted view, calling {@link #onAttached()} and {@link #onDetached()} on attach state changes.
+     */
+    WhatsappPreDrawTask(View view) {
+        mView = view;
+    }
+
+    /**
+     * Performs the format pass.
+     * @return true if the text of the view changed.
+     */
+    abstract boolean format();
+
+    /**
+     * Schedules the pass before the next draw, if not scheduled yet.
+     */
+    void schedule() {
+        if (mObserver == null) {
+            mObserver = mView.getViewTreeObserver();
+            mObserver.addOnPreDrawListener(this);
+        }
+    }
+
+    /**
+     * Cancels the scheduled pass.
+     */
+    void cancel() {
+        mPendingOnAttach = false;
+        if (mObserver != null) {
+            // the observer of a detached view is merged into the window one on attach
+            ViewTreeObserver observer = mObserver.isAlive() ? mObserver : mView.getViewTreeObserver();
+            observer.removeOnPreDrawListener(this);
+            mObserver = null;
+        }
+    }
+
+    /**
+     * @return true if a pass is scheduled.
+     */
+    boolean isScheduled() {
+        return mObserver != null;
+    }
+
+    /**
+     * To be called when the view is attached to a window.
+     */
+    void onAttached() {
+        if (mPendingOnAttach) {
+            schedule();
+            mPendingOnAttach = false;
+        }
+    }
+
+    /**
+     * To be called when the view is detached from its window.
+     */
+    void onDetached() {
+        if (isScheduled()) {
+            cancel();
+            mPendingOnAttach = true;
+        }
+    }
+
+    @Override
+    public boolean onPreDraw() {
+        cancel();
+        // skip the frame laid out with the raw text
+        return !format();
+    }
+}
@@ -0,0 +1,307 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.views;
+
+import android.text.GetChars;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.util.SparseArray;
+
+import com.cooltechworks.formatter.WhatsappSpanList;
+
+import java.lang.reflect.Array;
+
+/**
+ * Read-only formatted text, holding its spans as ranges and kinds in int arrays.
+ *
+ * Span objects are only created when {@link #getSpans(int, int, Class)} first returns them, and only for the
+ * spans of the requested range, so a cached text that is never drawn holds no span object. Views and layouts
+ * copy every span, so they get a copy of the text made with {@link #withNewSpans()}, and the cached text stays
+ * compact while shown. Span objects are not shared with other texts: a span set on two ranges of one
+ * Spannable, which happens as soon as formatted texts are concatenated or pasted together, is moved instead
+ * of copied.
+ */
+final class WhatsappSpannedText implements Spanned, GetChars {
+
+    private final String mText;
+    private final int[] mStarts;
+    private final int[] mEnds;
+    private final char[] mKinds;
+    private final int mCount;
+
+    /**
+     * Span factories the text was formatted with.
+     */
+    private final SparseArray<WhatsappViewCompat.SpanFactory> mFactories;
+
+    /**
+     * Spans already created, by entry, null until the first span is created. Guarded by this text, which
+     * can be laid out off the main thread.
+     */
+    private Object[] mSpans;
+
+    /**
+     * Entry of the last span looked up, the framework usually asks for the ranges of spans in their order.
+     */
+    private int mLastIndex;
+
+    /**
+     * @param text - formatted text, the raw text when flags are kept.
+     * @param spans - parsed spans of the text.
+     * @param keepFlags - whether the flag characters were kept in the text.
+     */
+    WhatsappSpannedText(String text, WhatsappSpanList spans, boolean keepFlags) {
+        this(text, spans, keepFlags, WhatsappSpans.getFactories());
+    }
+
+    /**
+     * @param text - formatted text, the raw text when flags are kept.
+     * @param spans - parsed spans of the text.
+     * @param keepFlags - whether the flag characters were kept in the text.
+     * @param factories - span factories creating the spans, from {@link WhatsappSpans#getFactories()}.
+     */
+    WhatsappSpannedText(String text, WhatsappSpanList spans, boolean keepFlags,
+                        SparseArray<WhatsappViewCompat.SpanFactory> factories) {
+
+        int capacity = spans.getSpanCount() * (keepFlags ? 3 : 1);
+        int[] starts = new int[capacity];
+        int[] ends = new int[capacity];
+        char[] kinds = new char[capacity];
+        int count = 0;
+
+        for (int i = 0; i < spans.getSpanCount(); i++) {
+
+            char kind = spans.getSpanType(i);
+            if (!WhatsappSpans.isKnownKind(factories, kind)) {
+                continue;
+            }
+
+            int start = spans.getSpanStart(i);
+            int end = spans.getSpanEnd(i);
+            int flagLength = spans.getSpanFlagLength(i);
+
+            starts[count] = start;
+            ends[count] = end;
+            kinds[count++] = kind;
+
+            if (keepFlags) {
+                starts[count] = start - flagLength;
+                ends[count] = start;
+                kinds[count++] = WhatsappSpans.FLAG_KIND;
+                starts[count] = end;
+                ends[count] = end + flagLength;
+                kinds[count++] = WhatsappSpans.FLAG_KIND;
+            }
+        }
+
+        mText = text;
+        mStarts = starts;
+        mEnds = ends;
+        mKinds = kinds;
+        mCount = count;
+        mFactories = factories;
+    }
+
+    private WhatsappSpannedText(WhatsappSpannedText source) {
+        mText = source.mText;
+        mStarts = source.mStarts;
+        mEnds = source.mEnds;
+        mKinds = source.mKinds;
+        mCount = source.mCount;
+        mFactories = source.mFactories;
+    }
+
+    /**
+     * @return text sharing the characters and span ranges of this one, with span objects of its own. Set on a
+     * TextView instead of a cached text: the view copies every span into its own buffer, and the cached text
+     * then does not keep the span objects of that copy.
+     */
+    WhatsappSpannedText withNewSpans() {
+        return new WhatsappSpannedText(this);
+    }
+
+    /**
+     * @return number of spans of the text, app spans of custom rules excluded, without creating them.
+     */
+    int getSpanCount() {
+        return mCount;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized <T> T[] getSpans(int start, int end, Class<T> type) {
+
+        int found = 0;
+        Object[] result = null;
+
+        for (int i = 0; i < mCount; i++) {
+
+            if (!intersects(mStarts[i], mEnds[i], start, end)) {
+                continue;
+            }
+
+            Object span = spanAt(i);
+            Object appSpan = span instanceof WhatsappSpans.RuleSpan ? ((WhatsappSpans.RuleSpan) span).mSpan : null;
+
+            for (Object candidate = span; candidate != null; candidate = candidate == span ? appSpan : null) {
+                if (type == null || type.isInstance(candidate)) {
+                    if (result == null) {
+                        result = new Object[Math.min(mCount * 2, 8)];
+                    } else if (found == result.length) {
+                        Object[] grown = new Object[Math.min(mCount * 2, found * 2)];
+                        System.arraycopy(result, 0, grown, 0, found);
+                        result = grown;
+                    }
+                    result[found++] = candidate;
+                }
+            }
+        }
+
+        Class<?> componentType = type != null ? type : Object.class;
+        T[] spans = (T[]) Array.newInstance(componentType, found);
+        if (found > 0) {
+            System.arraycopy(result, 0, spans, 0, found);
+        }
+        return spans;
+    }
+
+    @Override
+    public int getSpanStart(Object tag) {
+        int index = indexOf(tag);
+        return index >= 0 ? mStarts[index] : -1;
+    }
+
+    @Override
+    public int getSpanEnd(Object tag) {
+        int index = indexOf(tag);
+        return index >= 0 ? mEnds[index] : -1;
+    }
+
+    @Override
+    public int getSpanFlags(Object tag) {
+        return indexOf(tag) >= 0 ? SPAN_INCLUSIVE_INCLUSIVE : 0;
+    }
+
+    @Override
+    public synchronized int nextSpanTransition(int start, int limit, Class type) {
+
+        for (int i = 0; i < mCount; i++) {
+
+            int spanStart = mStarts[i];
+            int spanEnd = mEnds[i];
+            if ((spanStart <= start || spanStart >= limit) && (spanEnd <= start || spanEnd >= limit)) {
+                continue;
+            }
+
+            Object span = spanAt(i);
+            if (type == null || type.isInstance(span)
+                    || (span instanceof WhatsappSpans.RuleSpan && type.isInstance(((WhatsappSpans.RuleSpan) span).mSpan))) {
+                if (spanStart > start && spanStart < limit) {
+                    limit = spanStart;
+                }
+                if (spanEnd > start && spanEnd < limit) {
+                    limit = spanEnd;
+                }
+            }
+        }
+
+        return limit;
+    }
+
+    @Override
+    public int length() {
+        return mText.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return mText.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new SpannableStringBuilder(this, start, end);
+    }
+
+    @Override
+    public void getChars(int start, int end, char[] dest, int destoff) {
+        mText.getChars(start, end, dest, destoff);
+    }
+
+    @Override
+    public String toString() {
+        return mText;
+    }
+
+    /**
+     * Same intersection rule as the framework texts: empty spans match at their offset, and spans touching
+     * the range match only when the range is empty.
+     */
+    private static boolean intersects(int spanStart, int spanEnd, int start, int end) {
+        if (spanStart > end || spanEnd < start) {
+            return false;
+        }
+        if (spanStart != spanEnd && start != end) {
+            if (spanStart == end || spanEnd == start) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return span of the entry, created on first use.
+     */
+    private Object spanAt(int index) {
+
+        if (mSpans == null) {
+            mSpans = new Object[mCount];
+        }
+
+        Object span = mSpans[index];
+        if (span == null) {
+            span = WhatsappSpans.newSpan(mFactories, mKinds[index]);
+            if (span == null) {
+                // the factory of a custom rule returned no span, keep a marker so the entry stays unique
+                span = new WhatsappSpans.RuleSpan(mKinds[index], null);
+            }
+            mSpans[index] = span;
+        }
+        return span;
+    }
+
+    /**
+     * @return entry of a span created by this text, -1 if the span does not belong to it.
+     */
+    private synchronized int indexOf(Object tag) {
+
+        if (mSpans == null || tag == null) {
+            return -1;
+        }
+
+        Object[] spans = mSpans;
+        for (int n = 0, i = mLastIndex; n < mCount; n++, i = i + 1 < mCount ? i + 1 : 0) {
+            Object span = spans[i];
+            if (span == tag || (span instanceof WhatsappSpans.RuleSpan && ((WhatsappSpans.RuleSpan) span).mSpan == tag)) {
+                mLastIndex = i;
+                return i;
+            }
+        }
+        return -1;
+    }
+}
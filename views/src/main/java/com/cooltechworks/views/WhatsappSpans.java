@@ -0,0 +1,257 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.views;
+
+import android.graphics.Color;
+import android.graphics.Typeface;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.TypefaceSpan;
+import android.util.SparseArray;
+
+import com.cooltechworks.formatter.WhatsappRule;
+
+import com.cooltechworks.formatter.WhatsappSpanList;
+
+import static com.cooltechworks.views.WhatsappUtil.BOLD_FLAG;
+import static com.cooltechworks.views.WhatsappUtil.ITALIC_FLAG;
+import static com.cooltechworks.views.WhatsappUtil.STRIKE_FLAG;
+
+/**
+ * Spans set by the formatter. They behave like the framework spans they extend, and let the formatter
+ * tell its own spans apart from the ones set by the app when re-formatting a live text.
+ */
+final class WhatsappSpans {
+
+    private WhatsappSpans() {
+    }
+
+    /**
+     * Common type of every span set by the formatter.
+     */
+    interface FormatSpan {
+    }
+
+    static class BoldSpan extends StyleSpan implements FormatSpan {
+        BoldSpan() {
+            super(Typeface.BOLD);
+        }
+    }
+
+    static class ItalicSpan extends StyleSpan implements FormatSpan {
+        ItalicSpan() {
+            super(Typeface.ITALIC);
+        }
+    }
+
+    static class StrikeSpan extends StrikethroughSpan implements FormatSpan {
+    }
+
+    static class MonospaceSpan extends TypefaceSpan implements FormatSpan {
+        MonospaceSpan() {
+            super("monospace");
+        }
+    }
+
+    /**
+     * Marks a span created by a {@link WhatsappViewCompat.SpanFactory}, set on the same range as the span.
+     */
+    static class RuleSpan implements FormatSpan {
+
+        final int mKind;
+        final Object mSpan;
+
+        RuleSpan(int kind, Object span) {
+            mKind = kind;
+            mSpan = span;
+        }
+    }
+
+    /**
+     * Greys out a flag character kept in an EditText.
+     */
+    static class FlagSpan extends ForegroundColorSpan implements FormatSpan {
+        FlagSpan() {
+            super(Color.GRAY);
+        }
+    }
+
+    /**
+     * Kind of the {@link FlagSpan}, the other spans use their rule type.
+     */
+    static final int FLAG_KIND = 0;
+
+    private static final char MONOSPACE_KIND = WhatsappRule.MONOSPACE.getType();
+
+    /**
+     * Span factories of the app, by rule type. Written on the main thread, and replaced instead of modified, so
+     * that a text laid out on another thread keeps reading the factories it was formatted with.
+     */
+    private static volatile SparseArray<WhatsappViewCompat.SpanFactory> sFactories = new SparseArray<>();
+
+    static void setFactory(char type, WhatsappViewCompat.SpanFactory factory) {
+
+        SparseArray<WhatsappViewCompat.SpanFactory> current = sFactories;
+        SparseArray<WhatsappViewCompat.SpanFactory> factories = new SparseArray<>(current.size() + 1);
+        for (int i = 0; i < current.size(); i++) {
+            if (current.keyAt(i) != type) {
+                factories.put(current.keyAt(i), current.valueAt(i));
+            }
+        }
+        if (factory != null) {
+            factories.put(type, factory);
+        }
+        sFactories = factories;
+    }
+
+    /**
+     * @return current span factories, never modified. Can be read from any thread.
+     */
+    static SparseArray<WhatsappViewCompat.SpanFactory> getFactories() {
+        return sFactories;
+    }
+
+    /**
+     * @return kind of the span, its rule type or {@link #FLAG_KIND}.
+     */
+    static int kindOf(FormatSpan span) {
+        if (span instanceof RuleSpan) {
+            return ((RuleSpan) span).mKind;
+        } else if (span instanceof BoldSpan) {
+            return BOLD_FLAG;
+        } else if (span instanceof StrikeSpan) {
+            return STRIKE_FLAG;
+        } else if (span instanceof ItalicSpan) {
+            return ITALIC_FLAG;
+        } else if (span instanceof MonospaceSpan) {
+            return MONOSPACE_KIND;
+        }
+        return FLAG_KIND;
+    }
+
+    /**
+     * @param factories - span factories, from {@link #getFactories()}.
+     * @return true if spans of the given rule type can be created.
+     */
+    static boolean isKnownKind(SparseArray<WhatsappViewCompat.SpanFactory> factories, int kind) {
+        return factories.get(kind) != null || kind == MONOSPACE_KIND
+                || kind == BOLD_FLAG || kind == STRIKE_FLAG || kind == ITALIC_FLAG;
+    }
+
+    /**
+     * @return new span of the given kind, from the current app factory if any, null if the kind is unknown.
+     */
+    static FormatSpan newSpan(int kind) {
+        return newSpan(sFactories, kind);
+    }
+
+    /**
+     * @param factories - span factories, from {@link #getFactories()}.
+     * @return new span of the given kind, from the app factory if any, null if the kind is unknown.
+     */
+    static FormatSpan newSpan(SparseArray<WhatsappViewCompat.SpanFactory> factories, int kind) {
+
+        WhatsappViewCompat.SpanFactory factory = factories.get(kind);
+        if (factory != null) {
+            Object span = factory.newSpan((char) kind);
+            return span != null ? new RuleSpan(kind, span) : null;
+        }
+
+        if (kind == MONOSPACE_KIND) {
+            return new MonospaceSpan();
+        }
+
+        switch (kind) {
+            case BOLD_FLAG:
+                return new BoldSpan();
+            case STRIKE_FLAG:
+                return new StrikeSpan();
+            case ITALIC_FLAG:
+                return new ItalicSpan();
+            case FLAG_KIND:
+                return new FlagSpan();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Sets a new span of the given kind on the text.
+     * @return false if the kind is unknown.
+     */
+    static boolean setSpan(Spannable text, int kind, int start, int end) {
+
+        FormatSpan span = newSpan(kind);
+        if (span == null) {
+            return false;
+        }
+
+        text.setSpan(span, start, end, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        if (span instanceof RuleSpan) {
+            text.setSpan(((RuleSpan) span).mSpan, start, end, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        }
+        return true;
+    }
+
+    /**
+     * Removes a formatter span from the text, with the app span it marks.
+     */
+    static void removeSpan(Spannable text, FormatSpan span) {
+        if (span instanceof RuleSpan) {
+            text.removeSpan(((RuleSpan) span).mSpan);
+        }
+        text.removeSpan(span);
+    }
+
+    /**
+     * Sets the given flag spans on the text.
+     * @param text - text the spans were parsed from, or its stripped copy when flags were not kept.
+     * @param spans - parsed spans, for instance the parser of the last parse.
+     * @param offset - offset of the parsed region in the text.
+     * @param keepFlags - whether the flag characters were kept in the text.
+     */
+    static void setSpans(Spannable text, WhatsappSpanList spans, int offset, boolean keepFlags) {
+
+        for (int i = 0; i < spans.getSpanCount(); i++) {
+
+            int start = spans.getSpanStart(i) + offset;
+            int end = spans.getSpanEnd(i) + offset;
+            int flagLength = spans.getSpanFlagLength(i);
+
+            if (!setSpan(text, spans.getSpanType(i), start, end)) {
+                continue;
+            }
+
+            if (keepFlags) {
+                text.setSpan(new FlagSpan(), start - flagLength, start, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+                text.setSpan(new FlagSpan(), end, end + flagLength, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+            }
+        }
+    }
+
+    /**
+     * Tells whether a formatter span belongs to the lines between start and end, including spans collapsed
+     * by a deletion.
+     */
+    static boolean isInRegion(int spanStart, int spanEnd, int start, int end) {
+        return (spanEnd > start && spanStart < end) || (spanStart == spanEnd && spanStart >= start && spanStart <= end);
+    }
+}
@@ -0,0 +1,290 @@
+/**
+ *
+ * Copyright 2016 Harish Sridharan
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cooltechworks.views;
+
+import android.graphics.Typeface;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.util.SparseArray;
+
+import com.cooltechworks.formatter.WhatsappRules;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Formatted text of a message laid out for a given width and style, built off the main thread and drawn
+ * as is by {@link WhatsAppTextView#setText(WhatsappTextLayout)}.
+ *
+ * Layouts are cached by raw text, width and style, so a message scrolled back into view is neither parsed
+ * nor measured again.
+ */
+public final class WhatsappTextLayout {
+
+    /**
+     * Number of layouts kept in the cache.
+     */
+    public static final int CACHE_SIZE = 64;
+
+    private static final LruCache<Key, WhatsappTextLayout> sCache = new LruCache<>(CACHE_SIZE);
+
+    private static Handler sMainHandler;
+
+    /**
+     * Callback of {@link #precompute(CharSequence, Style, int, Executor, Callback)}, called on the main thread.
+     */
+    public interface Callback {
+        void onPrecomputed(WhatsappTextLayout layout);
+    }
+
+    /**
+     * Text style a layout depends on, captured from a view with {@link WhatsAppTextView#getLayoutStyle()}.
+     */
+    public static final class Style {
+
+        private final TextPaint mPaint;
+        private final float mSpacingMult;
+        private final float mSpacingAdd;
+        private final boolean mIncludePad;
+
+        /**
+         * @param paint - text paint, copied.
+         * @param spacingMult - line spacing multiplier.
+         * @param spacingAdd - extra line spacing, in pixels.
+         * @param includePad - whether the font padding is included.
+         */
+        public Style(TextPaint paint, float spacingMult, float spacingAdd, boolean includePad) {
+            mPaint = new TextPaint(paint);
+            mSpacingMult = spacingMult;
+            mSpacingAdd = spacingAdd;
+            mIncludePad = includePad;
+        }
+
+        /**
+         * @return true if text laid out with the given paint and spacing looks like text laid out with this style.
+         */
+        boolean matches(TextPaint paint, float spacingMult, float spacingAdd, boolean includePad) {
+            return mPaint.getTextSize() == paint.getTextSize()
+                    && mPaint.getTextScaleX() == paint.getTextScaleX()
+                    && mPaint.getTextSkewX() == paint.getTextSkewX()
+                    && mPaint.getFlags() == paint.getFlags()
+                    && equals(mPaint.getTypeface(), paint.getTypeface())
+                    && mSpacingMult == spacingMult
+                    && mSpacingAdd == spacingAdd
+                    && mIncludePad == includePad;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Style)) {
+                return false;
+            }
+            Style style = (Style) o;
+            return matches(style.mPaint, style.mSpacingMult, style.mSpacingAdd, style.mIncludePad);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = Float.floatToIntBits(mPaint.getTextSize());
+            result = 31 * result + mPaint.getFlags();
+            result = 31 * result + (mPaint.getTypeface() != null ? mPaint.getTypeface().hashCode() : 0);
+            result = 31 * result + Float.floatToIntBits(mSpacingMult);
+            result = 31 * result + Float.floatToIntBits(mSpacingAdd);
+            return result;
+        }
+
+        private static boolean equals(Typeface a, Typeface b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    private final String mRawText;
+    private final Style mStyle;
+    private final int mWidth;
+    private final int mDesiredWidth;
+    private final Layout mLayout;
+
+    private WhatsappTextLayout(String rawText, Style style, int width, WhatsappRules rules,
+                               SparseArray<WhatsappViewCompat.SpanFactory> factories) {
+
+        CharSequence formatted = WhatsappViewCompat.formatForLayout(rawText, rules, factories);
+
+        mRawText = rawText;
+        mStyle = style;
+        mWidth = width;
+        mLayout = new StaticLayout(formatted, new TextPaint(style.mPaint), width, Layout.Alignment.ALIGN_NORMAL,
+                style.mSpacingMult, style.mSpacingAdd, style.mIncludePad);
+
+        float desiredWidth = 0;
+        for (int i = 0; i < mLayout.getLineCount(); i++) {
+            desiredWidth = Math.max(desiredWidth, mLayout.getLineWidth(i));
+        }
+        mDesiredWidth = Math.min(width, (int) Math.ceil(desiredWidth));
+    }
+
+    /**
+     * Formats and lays out the raw text with the current rules and span factories, or returns the cached layout.
+     * Can be called from any thread, the span factories then being called from that thread.
+     * @param text - raw text, with its flags.
+     * @param style - text style.
+     * @param width - layout width, the view width without its padding.
+     * @return layout of the formatted text.
+     */
+    public static WhatsappTextLayout obtain(CharSequence text, Style style, int width) {
+        return obtain(text.toString(), style, width, WhatsappViewCompat.getRules(), WhatsappSpans.getFactories());
+    }
+
+    private static WhatsappTextLayout obtain(String text, Style style, int width, WhatsappRules rules,
+                                             SparseArray<WhatsappViewCompat.SpanFactory> factories) {
+
+        Key key = new Key(text, style, width, rules, factories);
+        WhatsappTextLayout layout = sCache.get(key);
+
+        if (layout == null) {
+            layout = new WhatsappTextLayout(text, style, width, rules, factories);
+            sCache.put(key, layout);
+        }
+
+        return layout;
+    }
+
+    /**
+     * Formats and lays out the raw text on the executor, with the rules and span factories current when called.
+     * The span factories are called on the executor. To be called from the main thread.
+     * @param text - raw text, with its flags.
+     * @param style - text style.
+     * @param width - layout width, the view width without its padding.
+     * @param executor - executor building the layout.
+     * @param callback - callback receiving the layout on the main thread.
+     */
+    public static void precompute(final CharSequence text, final Style style, final int width, Executor executor,
+                                  final Callback callback) {
+
+        if (sMainHandler == null) {
+            sMainHandler = new Handler(Looper.getMainLooper());
+        }
+        final Handler mainHandler = sMainHandler;
+        final String snapshot = text.toString();
+        final WhatsappRules rules = WhatsappViewCompat.getRules();
+        final SparseArray<WhatsappViewCompat.SpanFactory> factories = WhatsappSpans.getFactories();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final WhatsappTextLayout layout = obtain(snapshot, style, width, rules, factories);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onPrecomputed(layout);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Drops every cached layout, for instance from {@link android.content.ComponentCallbacks2#onTrimMemory(int)}.
+     * Also called when the rules or span factories change.
+     */
+    public static void clearCache() {
+        sCache.evictAll();
+    }
+
+    /**
+     * @return raw text of the layout.
+     */
+    public String getRawText() {
+        return mRawText;
+    }
+
+    /**
+     * @return formatted text of the layout.
+     */
+    public CharSequence getText() {
+        return mLayout.getText();
+    }
+
+    /**
+     * @return style of the layout.
+     */
+    public Style getStyle() {
+        return mStyle;
+    }
+
+    /**
+     * @return width the text was laid out for.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return width of the widest line, at most {@link #getWidth()}.
+     */
+    public int getDesiredWidth() {
+        return mDesiredWidth;
+    }
+
+    /**
+     * @return the layout, to be drawn on the main thread only.
+     */
+    public Layout getLayout() {
+        return mLayout;
+    }
+
+    private static final class Key {
+
+        final String mText;
+        final Style mStyle;
+        final int mWidth;
+
+        /**
+         * Rules and span factories the layout was built with, compared by identity: both are replaced, never
+         * modified, so a layout requested before a change and cached after it is never returned.
+         */
+        final WhatsappRules mRules;
+        final SparseArray<WhatsappViewCompat.SpanFactory> mFactories;
+
+        Key(String text, Style style, int width, WhatsappRules rules,
+            SparseArray<WhatsappViewCompat.SpanFactory> factories) {
+            mText = text;
+            mStyle = style;
+            mWidth = width;
+            mRules = rules;
+            mFactories = factories;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return mWidth == key.mWidth && mRules == key.mRules && mFactories == key.mFactories
+                    && mText.equals(key.mText) && mStyle.equals(key.mStyle);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * mText.hashCode() + mStyle.hashCode()) + mWidth;
+        }
+    }
+}
@@ -17,6 +17,8 @@
 
 package com.cooltechworks.views;
 
+import com.cooltechworks.formatter.WhatsappMarkup;
+
 import java.util.ArrayList;
 
 /**
@@ -38,14 +40,14 @@ public class WhatsappUtil {
         }
     }
 
-    public static final char NEW_LINE = '\n';
-    public static final char SPACE = ' ';
-    public static final char BOLD_FLAG = '*';
-    public static final char STRIKE_FLAG = '~';
-    public static final char ITALIC_FLAG = '_';
+    public static final char NEW_LINE = WhatsappMarkup.NEW_LINE;
+    public static final char SPACE = WhatsappMarkup.SPACE;
+    public static final char BOLD_FLAG = WhatsappMarkup.BOLD_FLAG;
+    public static final char STRIKE_FLAG = WhatsappMarkup.STRIKE_FLAG;
+    public static final char ITALIC_FLAG = WhatsappMarkup.ITALIC_FLAG;
 
 
-    public static final int INVALID_INDEX = -1;
+    public static final int INVALID_INDEX = WhatsappMarkup.INVALID_INDEX;
 
     /**
      * Checks whether the character present at the index of the CharSequence is a flagged character.
@@ -83,18 +85,6 @@ public class WhatsappUtil {
      * @return
      */
     public static boolean hasFlagSameLine(CharSequence sequence, char flag, int fromIndex) {
-
-        for(int i=fromIndex;i<sequence.length();i++) {
-            char c = sequence.charAt(i);
-            if(c == NEW_LINE) {
-                return false;
-            }
-
-            if(c == flag ) {
-                return i != fromIndex;
-            }
-        }
-
-        return false;
+        return WhatsappMarkup.hasFlagSameLine(sequence, flag, fromIndex);
     }
 }
@@ -17,27 +17,24 @@
 
 package com.cooltechworks.views;
 
-import android.graphics.Color;
-import android.graphics.Typeface;
-import android.os.Handler;
 import android.text.Editable;
+import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.TextUtils;
 import android.text.TextWatcher;
-import android.text.style.ForegroundColorSpan;
-import android.text.style.StrikethroughSpan;
-import android.text.style.StyleSpan;
 import android.util.Log;
+import android.util.SparseArray;
 import android.widget.EditText;
 import android.widget.TextView;
 
-import java.util.ArrayList;
+import com.cooltechworks.formatter.WhatsappParseResult;
+import com.cooltechworks.formatter.WhatsappParser;
+import com.cooltechworks.formatter.WhatsappPreview;
+import com.cooltechworks.formatter.WhatsappRules;
+import com.cooltechworks.formatter.WhatsappSpanIndex;
 
-import static com.cooltechworks.views.WhatsappUtil.BOLD_FLAG;
-import static com.cooltechworks.views.WhatsappUtil.INVALID_INDEX;
-import static com.cooltechworks.views.WhatsappUtil.ITALIC_FLAG;
-import static com.cooltechworks.views.WhatsappUtil.STRIKE_FLAG;
+import java.util.concurrent.Executor;
 
 /**
  * Created by Harish on 12/05/16.
@@ -49,104 +46,460 @@ public class WhatsappViewCompat {
      * WhatsappViewCompat for EditText.
      * @param editText - related EditText view on which the formatting should be applied on.
      * @param watchers - array of watchers that are watching on the text view content change.
+     * @return handle to remove the formatting from the view.
      */
-    public static void applyFormatting(final EditText editText, final TextWatcher... watchers) {
+    public static WhatsappFormattingHandle applyFormatting(final EditText editText, final TextWatcher... watchers) {
 
-        TextWatcher mEditTextWatcher = new TextWatcher() {
+        final WhatsappEditFormatter formatter = new WhatsappEditFormatter(editText, new WhatsappEditFormatter.Callback() {
+            @Override
+            public void onFormatted(Editable text) {
+                sendAfterTextChanged(watchers, text);
+            }
+        });
 
-            final TextWatcher mainWatcher = this;
-            Handler handler = new Handler();
+        final WhatsappFormatScheduler.Task formatTask = new WhatsappFormatScheduler.Task(editText) {
+            @Override
+            boolean format() {
+                return formatter.format(editText.getText());
+            }
+        };
 
-            private Runnable formatRunnable = new Runnable() {
-                @Override
-                public void run() {
-                    format(editText, mainWatcher, watchers);
-                }
-            };
+        TextWatcher mEditTextWatcher = new TextWatcher() {
 
             @Override
             public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+                formatter.beforeTextChanged(s, start, count);
                 sendBeforeTextChanged(watchers, s, start, count, after);
             }
 
             @Override
             public void onTextChanged(CharSequence s, int start, int before, int count) {
+                formatter.onTextChanged(s, start, before, count);
+                formatTask.onTextChanged(s, start, count);
                 sendOnTextChanged(watchers, s, start, before, count);
             }
 
             @Override
             public void afterTextChanged(Editable s) {
+                WhatsappFormatScheduler.getInstance().schedule(formatTask);
+            }
+        };
+
+        WhatsappFormattingHandle handle = new WhatsappFormattingHandle(editText, new WhatsappFormattingHandle.Callback() {
+            @Override
+            public void onViewAttached() {
+                if (formatter.isDirty()) {
+                    WhatsappFormatScheduler.getInstance().scheduleNextFrame(formatTask);
+                }
+            }
 
-                handler.removeCallbacks(formatRunnable);
-                handler.postDelayed(formatRunnable, 220);
+            @Override
+            public void onViewDetached() {
+                WhatsappFormatScheduler.getInstance().cancel(formatTask);
+            }
 
+            @Override
+            public void onDetach() {
+                WhatsappFormatScheduler.getInstance().cancel(formatTask);
+                formatter.cancel();
             }
-        };
+        });
 
-        String text = editText.getText().toString();
-        if (!TextUtils.isEmpty(text)) {
-            CharSequence formatted = extractFlagsForEditText(text);
-            editText.setText(formatted);
+        formatter.invalidate(editText.getText());
+        if (formatter.format(editText.getText())) {
+            WhatsappFormatScheduler.getInstance().scheduleNextFrame(formatTask);
+        }
+        handle.attach(mEditTextWatcher);
+        return handle;
+
+    }
+
+    /**
+     * Cache of the TextView formatted texts, null when disabled.
+     */
+    private static WhatsappFormatCache sFormatCache = new WhatsappFormatCache(WhatsappFormatCache.DEFAULT_MAX_SIZE);
+
+    /**
+     * Sets the cache of the TextView formatted texts, used by {@link WhatsAppTextView} and
+     * {@link #applyFormatting(TextView, TextWatcher...)}. To be called from the main thread.
+     * @param cache - cache to use, null to disable caching.
+     */
+    public static void setFormatCache(WhatsappFormatCache cache) {
+        sFormatCache = cache;
+    }
+
+    /**
+     * @return cache of the TextView formatted texts, null when disabled.
+     */
+    public static WhatsappFormatCache getFormatCache() {
+        return sFormatCache;
+    }
+
+    /**
+     * Formats the text for a TextView, through the format cache when enabled. The cache is looked up once.
+     * @param view - formatted view, reported to the {@link FormatterMetrics}.
+     * @param formatCount - number of format passes of the view, this one included.
+     * @param async - true to leave a large text that is not cached to an async parse.
+     * @return formatted text, null if the text should be parsed off the main thread.
+     */
+    static CharSequence formatForTextView(TextView view, CharSequence text, int formatCount, boolean async) {
+
+        WhatsappFormatCache cache = sFormatCache;
+        FormatterMetrics metrics = WhatsappMetrics.get();
+
+        CharSequence formatted = cache != null ? cache.get(text) : null;
+        if (formatted != null) {
+            if (metrics != null) {
+                metrics.onCacheHit(view, text.length());
+            }
+            return formatted;
+        }
+
+        if (async && WhatsappAsync.shouldParse(text.length())) {
+            return null;
+        }
+
+        if (metrics == null) {
+            formatted = extractFlagsForTextView(text);
+            return cache != null ? cache.put(text, formatted) : formatted;
+        }
+
+        long parseStart = WhatsappMetrics.beginSection(WhatsappMetrics.SECTION_PARSE);
+        WhatsappParser parser = WhatsappParser.obtain();
+        parser.parse(text, false, sRules);
+        long parseNanos = WhatsappMetrics.endSection(parseStart);
+
+        formatted = parser.getSpanCount() == 0
+                ? text : new WhatsappSpannedText(parser.getText().toString(), parser, false);
+
+        metrics.onFormat(view, text.length(), parser.getSpanCount(), parseNanos, formatCount);
+        parser.recycle();
+        return cache != null ? cache.put(text, formatted) : formatted;
+    }
+
+    /**
+     * Formats the text for a {@link WhatsappTextLayout}, through the format cache when enabled and still holding
+     * texts of the given rules and factories. Can be called from any thread.
+     * @param rules - markup rules, captured when the layout was requested.
+     * @param factories - span factories, captured when the layout was requested.
+     */
+    static CharSequence formatForLayout(CharSequence text, WhatsappRules rules,
+                                        SparseArray<SpanFactory> factories) {
+
+        WhatsappFormatCache cache = sFormatCache;
+        if (cache != null && rules == sRules && factories == WhatsappSpans.getFactories()) {
+            CharSequence formatted = cache.getOrFormat(text);
+            // the layout creates the span objects it draws and keeps them, not the cached text
+            return formatted instanceof WhatsappSpannedText
+                    ? ((WhatsappSpannedText) formatted).withNewSpans() : formatted;
+        }
+
+        WhatsappParser parser = WhatsappParser.obtain();
+        parser.parse(text, false, rules);
+        CharSequence formatted = parser.getSpanCount() == 0
+                ? text : new WhatsappSpannedText(parser.getText().toString(), parser, false, factories);
+        parser.recycle();
+        return formatted;
+    }
+
+    /**
+     * Builds and caches the formatted text of a TextView async parse.
+     * @param view - formatted view, reported to the {@link FormatterMetrics}.
+     * @param formatCount - number of format passes of the view, this one included.
+     * @return formatted text to set.
+     */
+    static CharSequence formatForTextView(TextView view, String snapshot, WhatsappParseResult result,
+                                          long parseNanos, int formatCount) {
+
+        FormatterMetrics metrics = WhatsappMetrics.get();
+        if (metrics != null) {
+            metrics.onFormat(view, snapshot.length(), result.getSpanCount(), parseNanos, formatCount);
+        }
+
+        return cacheForTextView(snapshot, result.getSpanCount() == 0
+                ? snapshot : new WhatsappSpannedText(result.getText(), result, false));
+    }
+
+    /**
+     * Tells whether the text shown by a TextView is already its formatted text. Spans only come with stripped
+     * flags, so a formatted text as long as the raw one has no span and the same characters.
+     * @param text - raw text, shown by the view.
+     * @param formatted - formatted text of the raw text.
+     */
+    static boolean isFormatted(CharSequence text, CharSequence formatted) {
+        return text.length() == formatted.length();
+    }
+
+    /**
+     * Sets a formatted text on a TextView, in an apply trace section when metrics are installed. The view
+     * copies the text and its spans, so a compact text is set through a copy of its own: the formatted text,
+     * often cached, keeps no span object.
+     */
+    static void setTextTraced(TextView view, CharSequence formatted) {
+
+        if (formatted instanceof WhatsappSpannedText) {
+            formatted = ((WhatsappSpannedText) formatted).withNewSpans();
         }
-        editText.addTextChangedListener(mEditTextWatcher);
 
+        if (WhatsappMetrics.get() == null) {
+            view.setText(formatted, TextView.BufferType.EDITABLE);
+        } else {
+            long applyStart = WhatsappMetrics.beginSection(WhatsappMetrics.SECTION_APPLY);
+            view.setText(formatted, TextView.BufferType.EDITABLE);
+            WhatsappMetrics.endSection(applyStart);
+        }
+    }
+
+    /**
+     * Caches a TextView formatted text when the format cache is enabled.
+     * @return formatted text to set.
+     */
+    static CharSequence cacheForTextView(String text, CharSequence formatted) {
+        WhatsappFormatCache cache = sFormatCache;
+        return cache != null ? cache.put(text, formatted) : formatted;
     }
 
     /**
-     * Performs formatting.
+     * Installs a listener of the formatting work, and wraps the parse and apply steps in systrace sections
+     * (API 18 and above). Nothing is measured without a listener.
+     * @param metrics - listener, null to remove it.
      */
-    private static void format(EditText editText, TextWatcher mainWatcher, TextWatcher[] otherWatchers ) {
-
-        Editable text = editText.getText();
-        CharSequence formatted = WhatsappViewCompat.extractFlagsForEditText(text);
-        removeTextChangedListener(editText,mainWatcher);
-        int selectionEnd = editText.getSelectionEnd();
-        int selectionStart = editText.getSelectionStart();
-        editText.setText(formatted);
-        editText.setSelection(selectionStart, selectionEnd);
-        Editable formattedEditableText = editText.getText();
-        sendAfterTextChanged(otherWatchers, formattedEditableText);
-        addTextChangedListener(editText, mainWatcher);
+    public static void setFormatterMetrics(FormatterMetrics metrics) {
+        WhatsappMetrics.set(metrics);
+    }
+
+    private static boolean sLazyFormatting;
+
+    /**
+     * Enables the lazy formatting of {@link WhatsAppTextView} and {@link #applyFormatting(TextView, TextWatcher...)}.
+     * The raw text is kept until the view is about to be drawn, so views that are never shown are never
+     * formatted, and a text replaced before being shown is never formatted either. Text watchers get
+     * {@link TextWatcher#afterTextChanged(Editable)} once the text is formatted. To be called from the main thread.
+     * @param lazy - true to format before drawing, false to format as soon as the text is set (default).
+     */
+    public static void setLazyFormatting(boolean lazy) {
+        sLazyFormatting = lazy;
+    }
+
+    /**
+     * @return true if TextView formatting waits until the view is drawn.
+     */
+    public static boolean isLazyFormatting() {
+        return sLazyFormatting;
+    }
+
+    /**
+     * Sets the executor used to parse large texts off the main thread. Results are applied on the main thread,
+     * and only if the text did not change meanwhile.
+     * @param executor - executor running the parse, null to parse on the main thread (default).
+     */
+    public static void setAsyncExecutor(Executor executor) {
+        WhatsappAsync.setExecutor(executor);
+    }
+
+    /**
+     * Creates the span of a custom rule type. Called on the main thread, and on the executor of
+     * {@link WhatsappTextLayout#precompute(CharSequence, WhatsappTextLayout.Style, int, Executor,
+     * WhatsappTextLayout.Callback)} for precomputed layouts, so a factory used with them must be thread safe.
+     */
+    public interface SpanFactory {
+
+        /**
+         * @param type - rule type of the span.
+         * @return new span, set on the text between the flags. Null to leave the text unformatted.
+         */
+        Object newSpan(char type);
+    }
+
+    private static volatile WhatsappRules sRules = WhatsappRules.DEFAULT;
+
+    /**
+     * Sets the markup rules of the formatted views. Rule types other than bold, strike, italic and
+     * {@link com.cooltechworks.formatter.WhatsappRule#MONOSPACE} need a {@link #setSpanFactory(char, SpanFactory)}.
+     * To be called from the main thread, before formatting the views.
+     * @param rules - markup rules, {@link WhatsappRules#DEFAULT} by default.
+     */
+    public static void setRules(WhatsappRules rules) {
+        sRules = rules;
+        clearFormatCache();
+    }
+
+    /**
+     * @return markup rules of the formatted views.
+     */
+    public static WhatsappRules getRules() {
+        return sRules;
+    }
+
+    /**
+     * Sets the factory creating the spans of a rule type, overriding the built-in span of the type if any.
+     * To be called from the main thread.
+     * @param type - rule type.
+     * @param factory - span factory, null to remove it.
+     */
+    public static void setSpanFactory(char type, SpanFactory factory) {
+        WhatsappSpans.setFactory(type, factory);
+        clearFormatCache();
+    }
+
+    private static void clearFormatCache() {
+        WhatsappFormatCache cache = sFormatCache;
+        if (cache != null) {
+            cache.clear();
+        }
+        WhatsappTextLayout.clearCache();
     }
 
     /**
      * WhatsappViewCompat for TextView.
      * @param textView - related TextView on which the formatting should be applied on.
      * @param watchers - array of watchers that are watching on the text view content change.
+     * @return handle to remove the formatting from the view.
      */
-    public static void applyFormatting(final TextView textView, final TextWatcher... watchers) {
+    public static WhatsappFormattingHandle applyFormatting(final TextView textView, final TextWatcher... watchers) {
 
-        TextWatcher mEditTextWatcher = new TextWatcher() {
+        final TextViewWatcher watcher = new TextViewWatcher(textView, watchers);
+        WhatsappFormattingHandle handle = new WhatsappFormattingHandle(textView, new WhatsappFormattingHandle.Callback() {
             @Override
-            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
-                sendBeforeTextChanged(watchers, s, start, count, after);
+            public void onViewAttached() {
+                watcher.mPreDrawTask.onAttached();
             }
 
             @Override
-            public void onTextChanged(CharSequence s, int start, int before, int count) {
-                sendOnTextChanged(watchers, s, start, before, count);
+            public void onViewDetached() {
+                watcher.mPreDrawTask.onDetached();
             }
 
             @Override
-            public void afterTextChanged(Editable s) {
+            public void onDetach() {
+                watcher.detach();
+            }
+        });
+
+        if (sLazyFormatting) {
+            // formats the current text before the first draw
+            textView.setText(textView.getText(), TextView.BufferType.EDITABLE);
+            handle.attach(watcher);
+            if (textView.length() > 0) {
+                watcher.afterTextChanged((Editable) textView.getText());
+            }
+            return handle;
+        }
+
+        String text = textView.getText().toString();
+        if (!TextUtils.isEmpty(text)) {
+            CharSequence formatted = formatForTextView(textView, text, 1, false);
+            if (!isFormatted(text, formatted)) {
+                textView.setText(formatted);
+            }
+        }
+        handle.attach(watcher);
+        return handle;
+    }
+
+    /**
+     * Watcher formatting a TextView set up by {@link #applyFormatting(TextView, TextWatcher...)}.
+     */
+    private static final class TextViewWatcher implements TextWatcher {
 
-                CharSequence formatted = extractFlagsForTextView(s);
+        private final TextView mTextView;
+        private final TextWatcher[] mWatchers;
 
-                removeTextChangedListener(textView, this);
-                textView.setText(formatted, TextView.BufferType.EDITABLE);
-                Editable formattedEditableText = (Editable) textView.getText();
-                sendAfterTextChanged(watchers, formattedEditableText);
-                addTextChangedListener(textView, this);
+        private int mVersion;
+
+        /**
+         * Number of format passes, the initial one included.
+         */
+        private int mFormatCount = 1;
+
+        private boolean mDetached;
+
+        private final WhatsappAsync.Callback mAsyncCallback = new WhatsappAsync.Callback() {
+            @Override
+            public void onParsed(String snapshot, WhatsappParseResult result, int resultVersion, long parseNanos) {
+                if (resultVersion == mVersion && !mDetached) {
+                    setFormattedText(formatForTextView(mTextView, snapshot, result, parseNanos, ++mFormatCount));
+                }
             }
         };
 
-        String text = textView.getText().toString();
-        if (!TextUtils.isEmpty(text)) {
-            CharSequence formatted = extractFlagsForTextView(text);
-            textView.setText(formatted);
+        /**
+         * Follows the attach state of the view through the {@link WhatsappFormattingHandle}.
+         */
+        final WhatsappPreDrawTask mPreDrawTask;
+
+        TextViewWatcher(TextView textView, TextWatcher[] watchers) {
+            mTextView = textView;
+            mWatchers = watchers;
+            mPreDrawTask = new WhatsappPreDrawTask(textView) {
+                @Override
+                boolean format() {
+                    return formatText((Editable) mTextView.getText());
+                }
+            };
+        }
+
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            sendBeforeTextChanged(mWatchers, s, start, count, after);
         }
-        textView.addTextChangedListener(mEditTextWatcher);
 
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            sendOnTextChanged(mWatchers, s, start, before, count);
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+
+            mVersion++;
+            if (sLazyFormatting) {
+                mPreDrawTask.schedule();
+                return;
+            }
+
+            formatText(s);
+        }
+
+        /**
+         * Drops the pending work, the watcher being removed from the view.
+         */
+        void detach() {
+            mDetached = true;
+            mVersion++;
+            mPreDrawTask.cancel();
+        }
+
+        /**
+         * @return true if the formatted text was set.
+         */
+        private boolean formatText(Editable s) {
+
+            mPreDrawTask.cancel();
+
+            CharSequence formatted = formatForTextView(mTextView, s, mFormatCount + 1, true);
+            if (formatted == null) {
+                WhatsappAsync.parse(s.toString(), false, mVersion, mAsyncCallback);
+                return false;
+            }
+
+            mFormatCount++;
+            return setFormattedText(formatted);
+        }
+
+        private boolean setFormattedText(CharSequence formatted) {
+
+            boolean changed = !isFormatted(mTextView.getText(), formatted);
+            if (changed) {
+                removeTextChangedListener(mTextView, this);
+                setTextTraced(mTextView, formatted);
+                addTextChangedListener(mTextView, this);
+            }
+
+            Editable formattedEditableText = (Editable) mTextView.getText();
+            sendAfterTextChanged(mWatchers, formattedEditableText);
+            return changed;
+        }
     }
 
     private static void sendAfterTextChanged(TextWatcher[] mListeners, Editable s) {
@@ -196,85 +549,21 @@ public class WhatsappViewCompat {
      * Performs formatting on the given text.
      *
      * @param text - input sequence.
-     * @return formatted sequence.
+     * @return formatted sequence, the input sequence itself when it has no flag.
      */
     public static CharSequence extractFlagsForTextView(CharSequence text) {
 
-        char[] textChars = text.toString().toCharArray();
-        ArrayList<Character> characters = new ArrayList<>();
-        ArrayList<WhatsappUtil.Flag> flags = new ArrayList<>();
-
-        WhatsappUtil.Flag boldFlag = new WhatsappUtil.Flag(INVALID_INDEX, INVALID_INDEX, BOLD_FLAG);
-        WhatsappUtil.Flag strikeFlag = new WhatsappUtil.Flag(INVALID_INDEX, INVALID_INDEX, STRIKE_FLAG);
-        WhatsappUtil.Flag italicFlag = new WhatsappUtil.Flag(INVALID_INDEX, INVALID_INDEX, ITALIC_FLAG);
-
-
-        for (int i = 0, j = 0; i < textChars.length; i++) {
-            char c = textChars[i];
-
-            if (c == BOLD_FLAG) {
-                if (boldFlag.start == INVALID_INDEX) {
-                    if (WhatsappUtil.hasFlagSameLine(text, BOLD_FLAG, i + 1)) {
-                        boldFlag.start = j;
-                        continue;
-                    }
-                } else {
-                    boldFlag.end = j;
-                    flags.add(boldFlag);
-                    boldFlag = new WhatsappUtil.Flag(INVALID_INDEX, INVALID_INDEX, BOLD_FLAG);
-                    continue;
-                }
-            }
-            if (c == STRIKE_FLAG) {
-                if (strikeFlag.start == INVALID_INDEX) {
-                    if (WhatsappUtil.hasFlagSameLine(text, STRIKE_FLAG, i + 1)) {
-                        strikeFlag.start = j;
-                        continue;
-                    }
-                } else {
-                    strikeFlag.end = j;
-                    flags.add(strikeFlag);
-                    strikeFlag = new WhatsappUtil.Flag(INVALID_INDEX, INVALID_INDEX, STRIKE_FLAG);
-                    continue;
-                }
-            }
-            if (c == ITALIC_FLAG) {
-                if (italicFlag.start == INVALID_INDEX) {
-                    if (WhatsappUtil.hasFlagSameLine(text, ITALIC_FLAG, i + 1)) {
-                        italicFlag.start = j;
-                        continue;
-                    }
-                } else {
-                    italicFlag.end = j;
-                    flags.add(italicFlag);
-                    italicFlag = new WhatsappUtil.Flag(INVALID_INDEX, INVALID_INDEX, ITALIC_FLAG);
-                    continue;
-                }
-            }
-            characters.add(c);
-            j++;
+        WhatsappParser parser = WhatsappParser.obtain();
+        parser.parse(text, false, sRules);
+        if (parser.getSpanCount() == 0) {
+            parser.recycle();
+            return text;
         }
 
-        String formatted = WhatsappUtil.getText(characters);
-        SpannableStringBuilder builder = new SpannableStringBuilder(formatted);
-
-
-        for (int i = 0; i < flags.size(); i++) {
-
-            WhatsappUtil.Flag flag = flags.get(i);
-
-            if (flag.flag == BOLD_FLAG) {
-                StyleSpan bss = new StyleSpan(Typeface.BOLD);
-                builder.setSpan(bss, flag.start, flag.end, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
-            } else if (flag.flag == STRIKE_FLAG) {
-                builder.setSpan(new StrikethroughSpan(), flag.start, flag.end, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
-            } else if (flag.flag == ITALIC_FLAG) {
-                StyleSpan iss = new StyleSpan(Typeface.ITALIC);
-                builder.setSpan(iss, flag.start, flag.end, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
-            }
-        }
+        CharSequence formatted = new WhatsappSpannedText(parser.getText().toString(), parser, false);
 
-        return builder;
+        parser.recycle();
+        return formatted;
     }
 
 
@@ -282,84 +571,83 @@ public class WhatsappViewCompat {
      * Performs formatting on the given text.
      *
      * @param text - input sequence.
-     * @return formatted sequence.
+     * @return formatted sequence, the input sequence itself when it has no flag.
      */
     public static CharSequence extractFlagsForEditText(CharSequence text) {
 
-        char[] textChars = text.toString().toCharArray();
-        ArrayList<Character> characters = new ArrayList<>();
-        ArrayList<WhatsappUtil.Flag> flags = new ArrayList<>();
+        WhatsappParser parser = WhatsappParser.obtain();
+        parser.parse(text, true, sRules);
+        if (parser.getSpanCount() == 0) {
+            parser.recycle();
+            return text;
+        }
 
-        WhatsappUtil.Flag boldFlag = new WhatsappUtil.Flag(INVALID_INDEX, INVALID_INDEX, BOLD_FLAG);
-        WhatsappUtil.Flag strikeFlag = new WhatsappUtil.Flag(INVALID_INDEX, INVALID_INDEX, STRIKE_FLAG);
-        WhatsappUtil.Flag italicFlag = new WhatsappUtil.Flag(INVALID_INDEX, INVALID_INDEX, ITALIC_FLAG);
+        CharSequence formatted = new WhatsappSpannedText(parser.getText().toString(), parser, true);
 
+        parser.recycle();
+        return formatted;
+    }
 
-        for (int i = 0, j = 0; i < textChars.length; i++) {
-            char c = textChars[i];
 
-            if (c == BOLD_FLAG) {
-                if (boldFlag.start == INVALID_INDEX) {
-                    if (WhatsappUtil.hasFlagSameLine(text, BOLD_FLAG, i + 1)) {
-                        boldFlag.start = j + 1;
-                    }
-                } else {
-                    boldFlag.end = j;
-                    flags.add(boldFlag);
-                    boldFlag = new WhatsappUtil.Flag(INVALID_INDEX, INVALID_INDEX, BOLD_FLAG);
-                }
-            } else if (c == STRIKE_FLAG) {
-                if (strikeFlag.start == INVALID_INDEX) {
-                    if (WhatsappUtil.hasFlagSameLine(text, STRIKE_FLAG, i + 1)) {
-                        strikeFlag.start = j + 1;
-                    }
-                } else {
-                    strikeFlag.end = j;
-                    flags.add(strikeFlag);
-                    strikeFlag = new WhatsappUtil.Flag(INVALID_INDEX, INVALID_INDEX, STRIKE_FLAG);
-                }
-            } else if (c == ITALIC_FLAG) {
-                if (italicFlag.start == INVALID_INDEX) {
-                    if (WhatsappUtil.hasFlagSameLine(text, ITALIC_FLAG, i + 1)) {
-                        italicFlag.start = j + 1;
-                    }
-                } else {
-                    italicFlag.end = j;
-                    flags.add(italicFlag);
-                    italicFlag = new WhatsappUtil.Flag(INVALID_INDEX, INVALID_INDEX, ITALIC_FLAG);
-                }
-            }
-            characters.add(c);
-            j++;
+    /**
+     * Performs formatting on the beginning of the given text only, for chat list rows and notifications. The
+     * cost depends on the size of the prefix, not on the size of the text. Use {@link WhatsappPreview} to know
+     * where the prefix ends.
+     *
+     * @param text - input sequence.
+     * @param maxLength - maximum number of formatted characters, or {@link WhatsappPreview#NO_LIMIT}.
+     * @param maxLines - maximum number of lines, or {@link WhatsappPreview#NO_LIMIT}.
+     * @return formatted prefix.
+     */
+    public static CharSequence extractPreviewForTextView(CharSequence text, int maxLength, int maxLines) {
+
+        WhatsappPreview preview = WhatsappPreview.parse(text, maxLength, maxLines, sRules);
+        if (!preview.isTruncated() && preview.getResult().getSpanCount() == 0) {
+            return text;
         }
 
-        String formatted = WhatsappUtil.getText(characters);
-        SpannableStringBuilder builder = new SpannableStringBuilder(formatted);
+        WhatsappParseResult result = preview.getResult();
+        return new WhatsappSpannedText(result.getText(), result, false);
+    }
 
 
-        for (int i = 0; i < flags.size(); i++) {
+    /**
+     * Performs formatting on the given text from its stored span index, without parsing it.
+     *
+     * @param text - input sequence.
+     * @param spanIndex - span index of the text, from {@link WhatsappSpanIndex#encode(CharSequence, WhatsappRules)}
+     *                  with the current rules.
+     * @return formatted sequence.
+     * @throws IllegalArgumentException if the span index does not match the text.
+     */
+    public static CharSequence extractFlagsForTextView(CharSequence text, byte[] spanIndex) {
+        WhatsappParseResult result = WhatsappSpanIndex.decode(spanIndex, text, false, sRules);
+        return new WhatsappSpannedText(result.getText(), result, false);
+    }
 
-            WhatsappUtil.Flag flag = flags.get(i);
-            if (flag.flag == BOLD_FLAG) {
-                StyleSpan bss = new StyleSpan(Typeface.BOLD);
-                builder.setSpan(bss, flag.start, flag.end, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
-                builder.setSpan(new ForegroundColorSpan(Color.GRAY), flag.start-1, flag.start, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
-                builder.setSpan(new ForegroundColorSpan(Color.GRAY), flag.end, flag.end+1, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
 
-            } else if (flag.flag == STRIKE_FLAG) {
-                builder.setSpan(new StrikethroughSpan(), flag.start, flag.end, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
-                builder.setSpan(new ForegroundColorSpan(Color.GRAY), flag.start-1, flag.start, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
-                builder.setSpan(new ForegroundColorSpan(Color.GRAY), flag.end, flag.end+1, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+    /**
+     * Writes a formatted text back to raw markup, for instance the text of a {@link WhatsAppTextView}, or an
+     * EditText styled by the app. Use {@link WhatsappMarkupSnapshot} to write long texts off the main thread.
+     *
+     * @param text - formatted sequence.
+     * @return raw markup.
+     */
+    public static String toMarkup(CharSequence text) {
+        return text instanceof Spanned ? WhatsappMarkupSnapshot.of((Spanned) text).toMarkup() : text.toString();
+    }
 
-            } else if (flag.flag == ITALIC_FLAG) {
-                StyleSpan iss = new StyleSpan(Typeface.ITALIC);
-                builder.setSpan(iss, flag.start, flag.end, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
-                builder.setSpan(new ForegroundColorSpan(Color.GRAY), flag.start-1, flag.start, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
-                builder.setSpan(new ForegroundColorSpan(Color.GRAY), flag.end, flag.end+1, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
 
-            }
+    /**
+     * Builds the formatted text of a parse result.
+     *
+     * @param result - parse result, from {@link WhatsappParser#getResult()}.
+     * @return formatted sequence.
+     */
+    public static Spannable toSpannable(WhatsappParseResult result) {
 
-        }
+        SpannableStringBuilder builder = new SpannableStringBuilder(result.getText());
+        WhatsappSpans.setSpans(builder, result, 0, result.isFlagsKept());
 
         return builder;
     }